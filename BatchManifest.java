@@ -0,0 +1,314 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manifest of the pairs of a batch run that are done, kept in the output
+ * folder, so that an interrupted run can be resumed and new images added to
+ * the input folders are processed alone. A pair is identified by the names,
+ * sizes and modification times of both input files in their input folders
+ * (so that nodes may mount a shared folder at different paths) and by the
+ * settings that change its results. A line is appended as soon as the results of a pair are
+ * saved: the key, Icorr, the name of the pair and the names and sizes of its
+ * output files. A pair is skipped if its key is in the manifest and all its
+ * output files are still there with the same size.
+ * <p>
+ * Several nodes (JVMs, possibly on different machines) can share the output
+ * folder. Each node then has a name and the manifest is kept in the shards
+ * folder instead, one file per pair that is written by an atomic rename. A
+ * node claims a pair by creating its lock file (which fails if the file
+ * exists) and renews the lease of its locks while it works. Locks whose lease
+ * has expired (the node is gone) are taken over by renaming them; a lock that
+ * turns out to be fresh is linked back, which never replaces a lock created in
+ * the meantime. A node that finds one of its locks held by another node drops
+ * the claim and leaves the lock alone. Failed pairs
+ * are recorded too, so that the run can end; they are processed again only
+ * after a restart.
+ */
+final class BatchManifest implements Closeable {
+	static final String MANIFEST = "Batch manifest.txt"; // the manifest in the output folder
+	static final String SHARDS = "Batch shards"; // the folder of locks and results of pairs shared by nodes
+
+	private final String outputpath; // the directory the manifest is saved in
+	private final String settings; // settings that change results of pairs
+	private final HashMap<String, String[]> entries = new HashMap<String, String[]>(); // the last line of each key
+	private final String node; // the name of this node (null if the output folder is not shared)
+	private final File shards; // the shards folder (null if the output folder is not shared)
+	private final long lease; // the time after which locks that are not renewed expire in milliseconds
+	private final HashSet<String> claims = new HashSet<String>(); // names of pairs locked by this node
+	private ScheduledExecutorService renewal; // renews the leases of the locks
+
+	/**
+	 * Reads the manifest of the output folder (if there is one). Only pairs
+	 * processed with the given settings are reused.
+	 */
+	BatchManifest(String outputpath, String settings) throws IOException {
+		this(outputpath, settings, null, 0);
+	}
+
+	/**
+	 * Reads the manifest of an output folder shared by several nodes, where this
+	 * node has the given (unique) name and locks expire after the given lease
+	 * in milliseconds. The node is alone if its name is null.
+	 */
+	BatchManifest(String outputpath, String settings, String node, long lease) throws IOException {
+		this.outputpath = outputpath;
+		this.settings = settings;
+		this.node = node;
+		this.lease = lease;
+		shards = node != null ? new File(outputpath + SHARDS) : null;
+		if (shards != null && !new File(shards, node).isDirectory() && !new File(shards, node).mkdirs())
+			throw new IOException("The shards folder can not be created");
+		File file = new File(outputpath + MANIFEST);
+		if (!file.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length >= 3 && fields.length % 2 == 1) // key, Icorr, name and pairs of file name and size
+					entries.put(fields[0], fields);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the folder of this node in the shards folder (ends with a
+	 * separator), or the output folder if the node is alone
+	 */
+	String folder() {
+		return shards != null ? new File(shards, node).getPath() + File.separator : outputpath;
+	}
+
+	/**
+	 * Returns the time between two looks at pairs claimed by other nodes in
+	 * milliseconds
+	 */
+	long poll() {
+		return Math.max(1000, lease / 10);
+	}
+
+	/**
+	 * Returns the key of a pair of input files (names relative to their input
+	 * folders)
+	 */
+	String key(File file1, File file2) {
+		return file1.getName() + "|" + file1.length() + "|" + file1.lastModified() + "|" + file2.getName() + "|"
+				+ file2.length() + "|" + file2.lastModified() + "|" + settings;
+	}
+
+	/**
+	 * Returns Icorr and the name of a pair that is done ({Icorr, name}), or null if
+	 * it has to be processed. Icorr is NaN if the pair failed on a node.
+	 */
+	synchronized Object[] done(File file1, File file2, String name) throws IOException {
+		String key = key(file1, file2);
+		String[] fields = entries.get(key);
+		if (shards != null && (fields == null || done(fields) == null)) { // Results written by a node
+			File file = new File(shards, name + ".done");
+			if (!file.isFile())
+				return null;
+			fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split("\t", -1);
+			if (!fields[0].equals(key))
+				return null; // Results of other input files or settings
+		}
+		return fields != null ? done(fields) : null;
+	}
+
+	// Returns Icorr and the name of a manifest line if all its output files are intact
+	private Object[] done(String[] fields) {
+		if (fields.length < 3 || fields.length % 2 == 0)
+			return null;
+		for (int i = 3; i < fields.length; i += 2) {
+			File output = new File(outputpath + fields[i]);
+			if (!output.isFile() || output.length() != Long.parseLong(fields[i + 1]))
+				return null; // Results are missing or incomplete
+		}
+		return new Object[] { Double.parseDouble(fields[1]), fields[2] };
+	}
+
+	/**
+	 * Claims a pair for this node. Returns false if another node works on it or
+	 * it has just been done. A node that is alone claims every pair.
+	 */
+	synchronized boolean claim(File file1, File file2, String name) throws IOException {
+		if (shards == null)
+			return true;
+		File lock = new File(shards, name + ".lock");
+		try {
+			Files.write(lock.toPath(), node.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			if (System.currentTimeMillis() - lock.lastModified() < lease)
+				return false; // Held by a live node
+			// Takes over an expired lock: only one node can rename it
+			File expired = new File(shards, name + ".expired " + node);
+			try {
+				Files.move(lock.toPath(), expired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e2) {
+				return false;
+			}
+			if (System.currentTimeMillis() - expired.lastModified() < lease) { // A new lock was renamed
+				try {
+					Files.createLink(lock.toPath(), expired.toPath()); // Fails if another node has created a lock
+				} catch (IOException e2) {
+					// The pair is held by the node that created the new lock
+				} finally {
+					expired.delete();
+				}
+				return false;
+			}
+			expired.delete();
+			return claim(file1, file2, name);
+		}
+		if (done(file1, file2, name) != null) { // Done by another node in the meantime
+			lock.delete();
+			return false;
+		}
+		claims.add(name);
+		if (renewal == null) {
+			renewal = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Lease renewal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			renewal.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					renew();
+				}
+			}, lease / 4, lease / 4, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	// Renews the leases of the locks of this node and drops claims whose lock is
+	// held by another node
+	private synchronized void renew() {
+		long now = System.currentTimeMillis();
+		for (Iterator<String> iterator = claims.iterator(); iterator.hasNext();) {
+			File lock = new File(shards, iterator.next() + ".lock");
+			String holder;
+			try {
+				holder = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				continue; // The lock may be renamed by a node that looks at its lease
+			}
+			if (holder.equals(node))
+				lock.setLastModified(now);
+			else
+				iterator.remove(); // Taken over by another node
+		}
+	}
+
+	/**
+	 * Records a pair whose results are saved in the given output files (names in
+	 * the output folder; files that do not exist are left out) and releases its
+	 * lock. Icorr is NaN if the pair failed: a node that is alone does not record
+	 * it, so that it is processed again by the next run.
+	 */
+	synchronized void add(File file1, File file2, double Icorr, String name, String[] outputs) throws IOException {
+		if (shards == null && Double.isNaN(Icorr))
+			return;
+		StringBuilder line = new StringBuilder(key(file1, file2));
+		line.append('\t').append(Icorr).append('\t').append(name);
+		for (String output : outputs) {
+			File file = new File(outputpath + output);
+			if (file.isFile())
+				line.append('\t').append(output).append('\t').append(file.length());
+		}
+		if (shards != null) {
+			try {
+				File temporary = new File(shards, name + ".done " + node);
+				Files.write(temporary.toPath(), line.toString().getBytes(StandardCharsets.UTF_8));
+				Files.move(temporary.toPath(), new File(shards, name + ".done").toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				release(name);
+			}
+			return;
+		}
+		PrintWriter writer = new PrintWriter(new FileWriter(outputpath + MANIFEST, true));
+		try {
+			writer.println(line);
+		} finally {
+			writer.close();
+		}
+		entries.put(key(file1, file2), line.toString().split("\t", -1));
+	}
+
+	// Deletes the lock of a pair claimed by this node
+	private void release(String name) {
+		if (claims.remove(name))
+			new File(shards, name + ".lock").delete();
+	}
+
+	/**
+	 * Copies the given lists of the folder of this node to the output folder
+	 * (each by an atomic rename, so nodes that copy the same lists at the same
+	 * time do not clash)
+	 */
+	void publish(String... lists) throws IOException {
+		if (shards == null)
+			return;
+		for (String list : lists) {
+			File source = new File(folder() + list);
+			if (!source.isFile())
+				continue;
+			File temporary = new File(shards, list + " " + node);
+			Files.copy(source.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary.toPath(), new File(outputpath + list).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Stops renewing leases and releases the locks this node still holds
+	 */
+	public synchronized void close() {
+		if (renewal != null)
+			renewal.shutdownNow();
+		for (String name : new HashSet<String>(claims))
+			release(name);
+	}
+
+	/**
+	 * Deletes the manifest and the results of all nodes, so that all pairs are
+	 * processed again
+	 */
+	static void delete(String outputpath) {
+		new File(outputpath + MANIFEST).delete();
+		File[] files = new File(outputpath + SHARDS).listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.isFile() && file.getName().endsWith(".done"))
+					file.delete();
+	}
+}
\ No newline at end of file
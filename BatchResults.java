@@ -0,0 +1,140 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Lists of Icorr values and names of colocalized channels of a batch run. Pairs
+ * may finish in any order when they are processed in parallel, so results are
+ * held back until all preceding pairs are done and the lists are always
+ * appended in input order. Pairs that fail leave no line, as before. Metrics
+ * of the pairs are written in the same order to a CSV file and added up for the
+ * summary of the run.
+ */
+final class BatchResults {
+	static final String ICORR = "List of Icorr values.txt"; // the list of Icorr values
+	static final String NAMES = "Names of colocalized channels.txt"; // the list of names of colocalized channels
+	static final String METRICS = "Metrics.csv"; // metrics of the pairs, one line per pair
+	static final String SUMMARY = "Metrics summary.txt"; // metrics of the whole run
+
+	private final String outputpath; // the directory the lists are saved in
+	private final TreeMap<Integer, Object[]> pending = new TreeMap<Integer, Object[]>(); // results of finished pairs
+	private int next; // index of the first pair that is not written yet
+	private final ColocalizationMetrics total = new ColocalizationMetrics(); // metrics of all pairs
+	private int pairs; // the number of pairs with results
+	private int resumed; // the number of pairs done by a previous run or another node
+	private String slowest; // the name of the pair that took longest
+	private long longest; // the time of the slowest pair in nanoseconds
+	private final long start = System.nanoTime(); // the start of the run
+
+	/**
+	 * Starts new lists in the output folder (lists of earlier runs are deleted)
+	 */
+	BatchResults(String outputpath) {
+		this.outputpath = outputpath;
+		new File(outputpath + ICORR).delete();
+		new File(outputpath + NAMES).delete();
+		new File(outputpath + METRICS).delete();
+		new File(outputpath + SUMMARY).delete();
+	}
+
+	/**
+	 * Records Icorr of the pair with the given input index. It is written when the
+	 * pair and all preceding pairs are done. Metrics are null for pairs done by a
+	 * previous run or another node.
+	 */
+	synchronized void add(int index, double Icorr, String name, ColocalizationMetrics metrics) {
+		pending.put(index, new Object[] { Icorr, name, metrics });
+	}
+
+	/**
+	 * Marks the pair with the given input index as done (with or without a result)
+	 * and appends all results that are now in order to the lists
+	 */
+	synchronized void done(int index) throws IOException {
+		if (!pending.containsKey(index))
+			pending.put(index, null); // No result for this pair
+		if (pending.firstKey() != next)
+			return;
+		PrintWriter icorrwriter = new PrintWriter(new FileWriter(outputpath + ICORR, true));
+		PrintWriter namewriter = new PrintWriter(new FileWriter(outputpath + NAMES, true));
+		try {
+			while (!pending.isEmpty() && pending.firstKey() == next) {
+				Object[] result = pending.remove(next++);
+				if (result != null) {
+					icorrwriter.println(result[0]);
+					namewriter.println(result[1]);
+					ColocalizationMetrics metrics = (ColocalizationMetrics) result[2];
+					if (metrics == null) { // Done by a previous run or another node
+						resumed++;
+						continue;
+					}
+					append(outputpath, (String) result[1], metrics);
+					total.add(metrics);
+					pairs++;
+					if (metrics.total() >= longest) {
+						longest = metrics.total();
+						slowest = (String) result[1];
+					}
+				}
+			}
+		} finally {
+			icorrwriter.close();
+			namewriter.close();
+		}
+	}
+
+	/**
+	 * Appends the metrics of a pair to the CSV file of the output folder (with a
+	 * header if the file is new)
+	 */
+	static void append(String outputpath, String name, ColocalizationMetrics metrics) throws IOException {
+		File file = new File(outputpath + METRICS);
+		boolean header = !file.exists();
+		PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+		try {
+			if (header)
+				writer.println(ColocalizationMetrics.header());
+			writer.println(metrics.csv(name));
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Saves the summary of the metrics of all pairs written so far and returns
+	 * its lines
+	 */
+	synchronized String[] summary() throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add("Pairs: " + pairs);
+		if (resumed > 0)
+			lines.add("Pairs done by a previous run or another node: " + resumed);
+		lines.add(String.format(Locale.ROOT, "Wall time: %.1f s", (System.nanoTime() - start) / 1e9));
+		lines.add(String.format(Locale.ROOT, "Time of all pairs: %.1f s (pairs in parallel overlap)", total.total() / 1e9));
+		if (slowest != null)
+			lines.add(String.format(Locale.ROOT, "Slowest pair: %s (%.1f s)", slowest, longest / 1e9));
+		lines.add("ROI pixels: " + total.count);
+		for (int phase = 0; phase < ColocalizationMetrics.PHASES.length; phase++)
+			if (total.line(phase) != null)
+				lines.add(total.line(phase));
+		PrintWriter writer = new PrintWriter(new FileWriter(outputpath + SUMMARY));
+		try {
+			for (String line : lines)
+				writer.println(line);
+		} finally {
+			writer.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+}
\ No newline at end of file
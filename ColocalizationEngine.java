@@ -0,0 +1,506 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.LUT;
+
+/**
+ * Colocalization of two images without any user interface: calculates the
+ * thresholds, the statistics of the ROIs, the nMDPs and Icorr and returns them
+ * as a ColocalizationResult. Problems with the input are reported by
+ * ColocalizationException and progress by a pluggable Progress, which is
+ * throttled, so the engine can run headless and be embedded in other programs.
+ * The Colocalization_ plugins are wrappers around it. Settings are public
+ * fields and have to be set before colocalize() is called.
+ *
+ * Stacks are read plane by plane through getProcessor(), so virtual stacks are
+ * streamed from disk; with a ColormapOutput only the planes being calculated
+ * are kept in memory.
+ */
+public final class ColocalizationEngine {
+	/**
+	 * Receives progress of the calculation. Implementations used by parallel
+	 * pairs have to be thread-safe.
+	 */
+	public interface Progress {
+		void status(String message); // a new phase of the calculation
+
+		void log(String message); // a calculated value (thresholds, means, maxima)
+
+		void progress(long done, long total); // the number of bands done
+	}
+
+	/**
+	 * Creates the destination of nMDPs once the thresholds and statistics of the
+	 * ROIs are known (e.g. a binary nMDP file with a header). The caller closes it.
+	 */
+	interface NMDPOutput {
+		NMDPBuffer.Sink open(ColocalizationResult result) throws IOException;
+	}
+
+	/**
+	 * Receives colormap pixels (int[] 0xRRGGBB, byte[] indices or float[] nMDPs)
+	 * in pixel order as soon as they are calculated: whole planes or strips of
+	 * rows of TIFF files (e.g. to append them to a TIFF file), so the colormap
+	 * stack is not kept
+	 */
+	interface ColormapOutput {
+		void write(Object pixels) throws IOException;
+	}
+
+	/**
+	 * Formats of the colormap: RGB 'jet' colors, 8-bit indices of 'jet' colors
+	 * with the 'jet' LUT (a quarter of the size of RGB) or 32-bit nMDPs with the
+	 * 'jet' LUT
+	 */
+	public static final String[] COLORMAPS = { "RGB", "8-bit indexed", "32-bit nMDPs" };
+
+	/**
+	 * Progress that ignores everything
+	 */
+	public static final Progress SILENT = new Progress() {
+		public void status(String message) {
+		}
+
+		public void log(String message) {
+		}
+
+		public void progress(long done, long total) {
+		}
+	};
+
+	static final long INTERVAL = 100; // the minimum time between two progress updates in milliseconds
+
+	/**
+	 * Returns the 'jet' LUT of colormaps of the given format as 0xRRGGBB values
+	 * (null for RGB). Index 0 of the indexed colormap is the black background.
+	 */
+	static int[] lut(String format) {
+		if (format.equals(COLORMAPS[0]))
+			return null;
+		int[] lut = JetColormap.JET.clone();
+		if (format.equals(COLORMAPS[1]))
+			lut[0] = 0;
+		return lut;
+	}
+
+	/**
+	 * Returns the LUT of colormaps of the given format as an ImageJ LUT (null for
+	 * RGB)
+	 */
+	public static LUT imageLUT(String format) {
+		int[] lut = lut(format);
+		return lut != null ? JetColormap.lut(lut) : null;
+	}
+
+	/**
+	 * Returns a colormap stack as an image with the LUT and display range of its
+	 * format
+	 */
+	public static ImagePlus image(String title, ImageStack colormap, String format) {
+		ImagePlus image = new ImagePlus(title, colormap);
+		if (format.equals(COLORMAPS[2]))
+			image.setDisplayRange(-1, 1); // nMDPs
+		return image;
+	}
+
+	public boolean autothreshold = true; // thresholds are calculated by the 'Default dark stack' method
+	public double threshold1 = Double.NaN; // manual threshold for image 1
+	public double threshold2 = Double.NaN; // manual threshold for image 2
+	public double[] thresholds; // manual thresholds of the channels of colocalize(ImagePlus[])
+	public boolean colormap = true; // the colormap is calculated
+	public String colormapformat = COLORMAPS[0]; // format of the colormap (one of COLORMAPS)
+	public boolean nMDPs = false; // nMDPs are kept in the result (or streamed to output)
+	public boolean summary = false; // the summary of the nMDP distribution is calculated
+	public boolean regions = false; // Icorr is also counted per slice, frame and ROI
+	public Roi[] rois; // ROIs Icorr is counted in if regions is true (e.g. of the ROI Manager; null for none)
+	public String significance = SignificanceTest.METHODS[0]; // the significance test of Icorr (one of SignificanceTest.METHODS)
+	public int resamples = 200; // the number of resamples of the significance test
+	public int block = 8; // edge of the blocks of the significance test in pixels
+	public long seed = 1; // the seed of the resamples of the significance test and of the sampled rows
+	public boolean sampling = false; // Icorr is estimated from a random sample of rows (see IcorrEstimate)
+	public double precision = 0.01; // the half-width of the 95% confidence interval at which sampling stops
+	public int threads = 1; // the number of threads used to process image stacks
+	public Progress progress = SILENT; // receives progress of the calculation
+	NMDPOutput output; // destination of nMDPs (they are kept in the result if null)
+	ColormapOutput colormapoutput; // destination of colormap planes (the colormap is kept in the result if null)
+	ColocalizationMetrics metrics; // metrics the phases are added to (new metrics are created if null)
+
+	/**
+	 * Colocalizes stacks of pixel arrays (byte[] or short[]) of the given size
+	 */
+	public ColocalizationResult colocalize(Object[] pixels1, Object[] pixels2, int width, int height)
+			throws ColocalizationException, IOException {
+		ImageStack stack1 = new ImageStack(width, height);
+		ImageStack stack2 = new ImageStack(width, height);
+		for (Object pixels : pixels1)
+			stack1.addSlice(null, pixels);
+		for (Object pixels : pixels2)
+			stack2.addSlice(null, pixels);
+		return colocalize(stack1, stack2);
+	}
+
+	/**
+	 * Colocalizes two stacks
+	 */
+	public ColocalizationResult colocalize(ImageStack stack1, ImageStack stack2)
+			throws ColocalizationException, IOException {
+		return colocalize(new ImagePlus("Image 1", stack1), new ImagePlus("Image 2", stack2));
+	}
+
+	/**
+	 * Colocalizes two images (8-bit or 16-bit grayscale images or stacks of the
+	 * same size)
+	 */
+	public ColocalizationResult colocalize(ImagePlus image1, ImagePlus image2)
+			throws ColocalizationException, IOException {
+		Progress progress = new Throttled(this.progress);
+		progress.status("Initialization..."); // Updates process status
+		/**
+		 * Checks whether images are in 8-bit or in 16-bit grayscale
+		 */
+		if (image1.getBitDepth() > 16)
+			throw new ColocalizationException("Convert " + image1.getTitle() + " image to 8-bit or 16-bit grayscale.");
+		if (image2.getBitDepth() > 16)
+			throw new ColocalizationException("Convert " + image2.getTitle() + " image to 8-bit or 16-bit grayscale.");
+		if (image1.getBitDepth() != image2.getBitDepth())
+			throw new ColocalizationException("Images must have the same bit depth.");
+		/**
+		 * Gets information about the size of input images (the number of pixels in a
+		 * row and column, the number of planes) and checks whether they are of the
+		 * same size
+		 */
+		ImageStack stack1 = image1.getImageStack(); // Gets input stack for image 1
+		ImageStack stack2 = image2.getImageStack(); // Gets input stack for image 2
+		if (stack1.getWidth() != stack2.getWidth() || stack1.getHeight() != stack2.getHeight()
+				|| stack1.getSize() != stack2.getSize())
+			throw new ColocalizationException("The source images or image stacks must have the same size");
+		return colocalize(ColocalizationKernel.source(stack1, stack2), image1.getBitDepth(), stack1.getWidth(),
+				stack1.getHeight(), stack1.getSize(), image1, image2, progress);
+	}
+
+	/**
+	 * Colocalizes all pairs of the given channels (8-bit or 16-bit grayscale
+	 * images or stacks of the same size, see ColocalizationMatrix.channels()).
+	 * Each channel is thresholded once and up to threads pairs are processed at
+	 * the same time. nMDPs and colormaps of the pairs are kept in the results.
+	 */
+	public ColocalizationMatrix colocalize(ImagePlus[] channels) throws ColocalizationException {
+		return ColocalizationMatrix.colocalize(this, channels);
+	}
+
+	/**
+	 * Colocalizes two uncompressed TIFF files read in strips (for planes larger
+	 * than the heap). Colormap strips are only kept if no ColormapOutput is set.
+	 */
+	ColocalizationResult colocalize(TiffStrips strips1, TiffStrips strips2)
+			throws ColocalizationException, IOException {
+		Progress progress = new Throttled(this.progress);
+		progress.status("Initialization..."); // Updates process status
+		if (strips1.bitDepth != strips2.bitDepth)
+			throw new ColocalizationException("Images must have the same bit depth.");
+		if (strips1.width != strips2.width || strips1.height != strips2.height || strips1.depth != strips2.depth)
+			throw new ColocalizationException("The source images or image stacks must have the same size");
+		if (colormap == true && colormapoutput == null && (long) strips1.width * strips1.height > Integer.MAX_VALUE)
+			throw new ColocalizationException("The colormap of " + strips1.title + " is too large to be kept");
+		return colocalize(ColocalizationKernel.source(strips1, strips2), strips1.bitDepth, strips1.width,
+				strips1.height, strips1.depth, null, null, progress);
+	}
+
+	/**
+	 * Colocalizes the images of source. Thresholds of ImagePlus images (null for
+	 * TIFF strips) are calculated by StackThreshold.
+	 */
+	private ColocalizationResult colocalize(ColocalizationKernel.Source source, int bitDepth, final int width,
+			final int height, int depth, ImagePlus image1, ImagePlus image2, Progress progress)
+			throws ColocalizationException, IOException {
+		final int type = Arrays.asList(COLORMAPS).indexOf(colormapformat); // ColocalizationKernel type of colormap pixels
+		if (type < 0)
+			throw new ColocalizationException("Unknown colormap format: " + colormapformat);
+		if (Arrays.asList(SignificanceTest.METHODS).indexOf(significance) < 0)
+			throw new ColocalizationException("Unknown significance test: " + significance);
+		ColocalizationResult result = new ColocalizationResult();
+		result.width = width;
+		result.height = height;
+		result.depth = depth;
+		final ColocalizationMetrics metrics = this.metrics != null ? this.metrics : new ColocalizationMetrics();
+		result.metrics = metrics;
+		progress = metrics.progress(progress); // Samples used heap while bands are processed
+		long pixels = (long) width * height * depth; // the number of pixels of each image
+		if (sampling == true) {
+			/**
+			 * Estimates thresholds, means, maxima and Icorr from a stratified random
+			 * sample of rows (no nMDPs, colormap or other results)
+			 */
+			if (colormap == true || nMDPs == true || summary == true || regions == true
+					|| significance.equals(SignificanceTest.METHODS[0]) == false)
+				progress.log("Only Icorr is estimated when sampling"); // Updates log
+			progress.status("Sampling rows..."); // Updates process status
+			metrics.start(ColocalizationMetrics.STATISTICS);
+			result.estimate = IcorrEstimate.estimate(this, source, bitDepth, width, height, depth, image1, image2,
+					result, progress);
+			metrics.stop(result.estimate.pixels);
+			metrics.count = result.count;
+			progress.log("Threshold 1: " + String.valueOf(result.threshold1)); // Updates log
+			progress.log("Threshold 2: " + String.valueOf(result.threshold2)); // Updates log
+			for (String line : result.estimate.lines())
+				progress.log(line.replace('\t', ' ')); // Updates log
+			if (metrics.line(ColocalizationMetrics.STATISTICS) != null)
+				progress.log(metrics.line(ColocalizationMetrics.STATISTICS)); // Updates log with the time of sampling
+			return result;
+		}
+		JointHistogram histogram = null; // joint histogram of image 1 and image 2
+		/**
+		 * Gets manual thresholds or calculates autothresholds
+		 */
+		if (autothreshold == false) {
+			if (Double.isNaN(threshold1) == true || Double.isNaN(threshold2) == true)
+				throw new ColocalizationException(
+						"The threshold value for at least one of the images has not been specified");
+			progress.status("Calculating thresholds..."); // Updates process status
+			result.threshold1 = threshold1;
+			result.threshold2 = threshold2;
+			progress.log("Threshold1: " + String.valueOf(result.threshold1)); // Updates log
+			progress.log("Threshold2: " + String.valueOf(result.threshold2)); // Updates log
+		} else {
+			progress.status("Applying thresholds..."); // Updates process status
+			metrics.start(ColocalizationMetrics.THRESHOLD);
+			if (image1 == null || (StackThreshold.supported(image1) == true && StackThreshold.supported(image2) == true)) {
+				// Collects intensity histograms of both images together with their joint
+				// histogram in a single scan. The joint histogram holds all pixels, so it also
+				// gives the statistics of the ROIs once thresholds are known.
+				ColocalizationKernel scan = new ColocalizationKernel(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+				scan.threads = threads;
+				scan.progress = progress;
+				histogram = scan.histogram(source, bitDepth == 8);
+				// Calculates autothresholds using default ImgeJ method (variation of IsoData
+				// algorithm)
+				if (image1 != null) {
+					result.threshold1 = StackThreshold.threshold(image1, histogram.histogram1());
+					result.threshold2 = StackThreshold.threshold(image2, histogram.histogram2());
+				} else {
+					result.threshold1 = StackThreshold.threshold(bitDepth, false, histogram.histogram1());
+					result.threshold2 = StackThreshold.threshold(bitDepth, false, histogram.histogram2());
+				}
+				if (histogram.overflow() == true)
+					histogram = null; // Statistics have to be calculated from the images
+			} else {
+				// Calculates autothresholds using default ImgeJ method (variation of IsoData
+				// algorithm)
+				result.threshold1 = StackThreshold.threshold(image1);
+				result.threshold2 = StackThreshold.threshold(image2);
+			}
+			metrics.stop(pixels);
+			progress.log("Threshold 1: " + String.valueOf(result.threshold1)); // Updates log
+			progress.log("Threshold 2: " + String.valueOf(result.threshold2)); // Updates log
+		}
+		/**
+		 * Calculates mean pixel intensities in the ROI (pixels equal to or above
+		 * threshold) of image1 and image2
+		 */
+		progress.status("Calculating mean and max intensities..."); // Updates process status
+		metrics.start(ColocalizationMetrics.STATISTICS);
+		long read = 0; // the number of pixels read from the images
+		ColocalizationKernel kernel = new ColocalizationKernel(result.threshold1, result.threshold2); // Works on raw pixel arrays
+		kernel.threads = threads; // Planes and row bands are processed in parallel if threads > 1
+		kernel.progress = progress;
+		long[] stats = new long[ColocalizationKernel.STATISTICS]; // sums, count and maxima of the ROIs
+		if (histogram == null && colormap == false && nMDPs == false) {
+			// Neither colormap nor nMDPs are requested, so statistics and Icorr are derived
+			// from the joint histogram of both images, which takes a single scan
+			histogram = kernel.histogram(source, bitDepth == 8);
+			read += pixels;
+			if (histogram.overflow() == true) {
+				progress.log("Too many distinct intensity pairs for the joint histogram"); // Updates log
+				histogram = null; // Falls back to two scans of the images
+			}
+		}
+		if (histogram != null)
+			stats = histogram.statistics(result.threshold1, result.threshold2);
+		else {
+			kernel.statistics(source, stats);
+			read += pixels;
+		}
+		metrics.stop(read);
+		result.count = stats[ColocalizationKernel.COUNT]; // the number of pixels in the ROI
+		metrics.count = result.count;
+		result.max1 = stats[ColocalizationKernel.MAX1]; // maximum intensity in the image 1 ROI
+		result.max2 = stats[ColocalizationKernel.MAX2]; // maximum intensity in the image 2 ROI
+		progress.log("Maximum 1: " + String.valueOf(result.max1)); // Updates log
+		progress.log("Maximum 2: " + String.valueOf(result.max2)); // Updates log
+		/**
+		 * To avoid division by zero checks whether ROIs of input images contain any
+		 * data
+		 */
+		if (result.count == 0)
+			throw new ColocalizationException(
+					"Exception (impossible case):\n \nAt least one of your images can not be processed."
+							+ "\nProbably there are only black pixels above the threshold."
+							+ "\nCheck image and threshold parameters.");
+		result.mean1 = (double) stats[ColocalizationKernel.SUM1] / result.count; // mean pixel intensity for the image1 ROI
+		result.mean2 = (double) stats[ColocalizationKernel.SUM2] / result.count; // mean pixel intensity for the image2 ROI
+		progress.log("Mean 1: " + String.valueOf(result.mean1));
+		progress.log("Mean 2: " + String.valueOf(result.mean2));
+		/**
+		 * To avoid division by zero checks whether maximum and mean pixel intensities
+		 * are different for given input images if mean=max in at least one of the
+		 * images, nMDP value will not be represented by a number
+		 */
+		if (result.max1 == result.mean1 || result.max2 == result.mean2)
+			throw new ColocalizationException(
+					"Exception (impossible case):\n \nAt least one of your images can not be processed."
+							+ "\nProbably all above-threshold pixels contain the same intensity value.\n \n"
+							+ "Note that mean intensity value and maximum intensity value\nmust be different "
+							+ "to calculate the mean deviation product properly.");
+		/**
+		 * Calculates nMDPs, the number of positive nMDPs and Icorr
+		 */
+		progress.status("Calculating Icor and nMDPs..."); // Updates process status
+		metrics.start(ColocalizationMetrics.COLORMAP);
+		NMDPBuffer buffer = null; // nMDPs (if requested)
+		if (nMDPs == true && output != null) {
+			final NMDPBuffer.Sink sink = output.open(result);
+			buffer = new NMDPBuffer(new NMDPBuffer.Sink() {
+				public void write(double[] values, int length) throws IOException {
+					long start = System.nanoTime();
+					sink.write(values, length);
+					metrics.add(ColocalizationMetrics.NMDP_WRITE, System.nanoTime() - start, length);
+				}
+			});
+		} else if (nMDPs == true)
+			buffer = new NMDPBuffer();
+		kernel.setStatistics(result.mean1, result.mean2, result.max1, result.max2, JetColormap.JET);
+		kernel.type = type;
+		result.summary = summary ? new NMDPSummary() : null; // distribution of nMDPs (if requested)
+		if (regions == true) { // Counts nMDPs per plane and ROI in the same pass
+			int slices = image1 != null ? image1.getNSlices() : depth;
+			int frames = image1 != null ? image1.getNFrames() : 1;
+			if (slices * frames != depth) { // Planes are not slices and frames of a hyperstack
+				slices = depth;
+				frames = 1;
+			}
+			kernel.regions = new ColocalizationRegions(width, height, slices, frames, rois);
+			result.regions = kernel.regions;
+		}
+		if (histogram != null && colormap == false && nMDPs == false && regions == false) {
+			result.positive = histogram.positive(kernel); // the number of positive nMDPs
+			if (result.summary != null)
+				histogram.summary(kernel, result.summary);
+			metrics.stop(0);
+		} else {
+			long[] counts = new long[ColocalizationKernel.COUNTS]; // the number of positive and of all nMDPs
+			// Calculates nMDPs for pairs of corresponding pixels from the ROIs of image1 and
+			// image2, adds them to the buffer and applies 'jet' colormap to the result
+			// stack (zero values for pixels below the threshold)
+			try {
+				if (colormap == true) {
+					final ImageStack colocalizationstack = new ImageStack(width, height);
+					kernel.colormap(source, buffer, result.summary, counts, new Consumer<Object>() {
+						Object plane; // colormap plane assembled from strips
+						int position; // the number of pixels in plane
+
+						public void accept(Object pixels) {
+							int length = Array.getLength(pixels);
+							if (colormapoutput != null) {
+								try {
+									long start = System.nanoTime();
+									colormapoutput.write(pixels);
+									metrics.add(ColocalizationMetrics.COLORMAP_WRITE, System.nanoTime() - start, length);
+								} catch (IOException e) {
+									throw new UncheckedIOException(e);
+								}
+							} else if (plane == null && length == width * height)
+								colocalizationstack.addSlice("", pixels);
+							else {
+								if (plane == null)
+									plane = Array.newInstance(pixels.getClass().getComponentType(), width * height);
+								System.arraycopy(pixels, 0, plane, position, length);
+								position += length;
+								if (position == width * height) {
+									colocalizationstack.addSlice("", plane);
+									plane = null;
+									position = 0;
+								}
+							}
+						}
+					});
+					if (colormapoutput == null) {
+						colocalizationstack.setColorModel(imageLUT(colormapformat));
+						result.colormap = colocalizationstack;
+					}
+				} else
+					kernel.colormap(source, buffer, result.summary, counts, null);
+				if (buffer != null)
+					buffer.flush();
+			} catch (UncheckedIOException e) {
+				throw e.getCause(); // nMDPs or colormap planes could not be written
+			}
+			metrics.stop(pixels);
+			result.positive = counts[ColocalizationKernel.POSITIVE]; // the number of positive nMDPs
+		}
+		if (output == null)
+			result.nMDPs = buffer;
+		result.Icorr = (double) result.positive / result.count; // Calculates Icorr
+		/**
+		 * Tests the significance of Icorr against resamples of image 2 (only Icorr of
+		 * the resamples is calculated)
+		 */
+		if (significance.equals(SignificanceTest.METHODS[0]) == false) {
+			if (image1 == null)
+				progress.log("The significance test is not available for images read in strips"); // Updates log
+			else {
+				progress.status("Testing significance of Icorr..."); // Updates process status
+				metrics.start(ColocalizationMetrics.SIGNIFICANCE);
+				result.significance = SignificanceTest.test(image1.getImageStack(), image2.getImageStack(),
+						result.Icorr, significance, resamples, block, seed, kernel);
+				metrics.stop(2 * pixels * resamples);
+				for (String line : result.significance.lines())
+					progress.log(line.replace('\t', ' ')); // Updates log
+			}
+		}
+		for (int phase = ColocalizationMetrics.THRESHOLD; phase <= ColocalizationMetrics.SIGNIFICANCE; phase++)
+			if (metrics.line(phase) != null)
+				progress.log(metrics.line(phase)); // Updates log with times of phases
+		return result;
+	}
+
+	/**
+	 * Passes progress to another Progress at most once per INTERVAL (and when a
+	 * calculation is complete)
+	 */
+	private static final class Throttled implements Progress {
+		private final Progress progress;
+		private long last; // the time of the last update in milliseconds
+
+		Throttled(Progress progress) {
+			this.progress = progress;
+		}
+
+		public void status(String message) {
+			progress.status(message);
+		}
+
+		public void log(String message) {
+			progress.log(message);
+		}
+
+		public void progress(long done, long total) {
+			long now = System.currentTimeMillis();
+			if (done == total || now - last >= INTERVAL) {
+				last = now;
+				progress.progress(done, total);
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+/**
+ * Thrown by ColocalizationEngine when a pair of images can not be colocalized
+ * (unsupported or mismatched images, missing thresholds, empty ROIs). The
+ * message is the one displayed to the user by the plugins.
+ */
+public class ColocalizationException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public ColocalizationException(String message) {
+		super(message);
+	}
+}
\ No newline at end of file
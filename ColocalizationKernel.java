@@ -0,0 +1,739 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Pixel-array kernel used by Colocalization_.colocalize. Works directly on the
+ * backing byte[] (8-bit) or short[] (16-bit) arrays of the input planes and on
+ * the pixel array of the colormap plane (int[] RGB, byte[] indexed or float[]
+ * nMDPs), so that no objects are allocated
+ * per pixel. Pixels are addressed by their index in the plane (y * width + x).
+ * Whole stacks can be split into planes and row bands that are processed by a
+ * ForkJoin pool; partial results are merged in band order, so the outcome does
+ * not depend on the number of threads.
+ * The nMDP loop of 8-bit and 16-bit pixels runs on ColocalizationVectorKernel
+ * if the Vector API is available (except for nMDP images, which are written
+ * faster by the scalar loop); its results are identical.
+ */
+final class ColocalizationKernel {
+	// Positions of the statistics accumulated by statistics()
+	static final int SUM1 = 0; // sum of intensities in image 1 ROI
+	static final int SUM2 = 1; // sum of intensities in image 2 ROI
+	static final int COUNT = 2; // the number of pixels in the ROI
+	static final int MAX1 = 3; // max intensity in image 1 ROI
+	static final int MAX2 = 4; // max intensity in image 2 ROI
+	static final int STATISTICS = 5; // length of the statistics array
+	// Positions of the counts accumulated by colormap()
+	static final int POSITIVE = 0; // the number of positive nMDPs
+	static final int ALL = 1; // the number of all nMDPs
+	static final int COUNTS = 2; // length of the counts array
+	// Types of colormap pixels
+	static final int RGB = 0; // 'jet' colors packed as 0xRRGGBB (int[])
+	static final int INDEXED = 1; // indices of 'jet' colors 1-255, 0 below the thresholds (byte[])
+	static final int FLOAT = 2; // nMDPs, NaN below the thresholds (float[])
+	// The maximum number of pixels in a row band of a plane processed by one task
+	static final int BAND = 1 << 18;
+	// The maximum number of pixels in a strip of a TIFF file read by one task
+	static final int TILE = 1 << 20;
+	// The number of pixels processed at a time by the vector kernel
+	static final int LANE_CHUNK = 1 << 12;
+	// nMDP of pixels outside the ROI returned by the vector kernel (nMDPs are within [-1, 1] or NaN)
+	static final double BACKGROUND = Double.POSITIVE_INFINITY;
+	// The vector kernel, or null if the Vector API is not available
+	static final Lanes LANES = lanes();
+
+	final double threshold1; // the threshold for image 1
+	final double threshold2; // the threshold for image 2
+	double mean1; // mean pixel intensity for the image 1 ROI
+	double mean2; // mean pixel intensity for the image 2 ROI
+	double max1; // max intensity in image 1 ROI
+	double max2; // max intensity in image 2 ROI
+	double denominator; // (max1 - mean1) * (max2 - mean2)
+	double[] deviations1; // value - mean1 of the intensities 0 to max1 of image 1
+	double[] deviations2; // value - mean2 of the intensities 0 to max2 of image 2
+	int[] colormap; // 'jet' map packed as 0xRRGGBB
+	int type = RGB; // the type of colormap pixels
+	int threads = 1; // the number of threads used to process stacks
+	ColocalizationRegions regions; // counts of nMDPs per plane and ROI kept by colormap() (null if not requested)
+	ColocalizationEngine.Progress progress = ColocalizationEngine.SILENT; // receives the number of bands done
+
+	ColocalizationKernel(double threshold1, double threshold2) {
+		this.threshold1 = threshold1;
+		this.threshold2 = threshold2;
+	}
+
+	/**
+	 * Sets ROI statistics and the packed colormap used by colormap() and builds
+	 * the deviation tables of both images, so that the nMDP of a pixel takes two
+	 * lookups instead of two subtractions
+	 */
+	void setStatistics(double mean1, double mean2, double max1, double max2, int[] colormap) {
+		this.mean1 = mean1;
+		this.mean2 = mean2;
+		this.max1 = max1;
+		this.max2 = max2;
+		this.denominator = (max1 - mean1) * (max2 - mean2);
+		this.colormap = colormap;
+		this.deviations1 = deviations(mean1, max1);
+		this.deviations2 = deviations(mean2, max2);
+	}
+
+	// Returns value - mean of all intensities from 0 to max (the maximum of the
+	// ROI, so all ROI pixels are covered)
+	private static double[] deviations(double mean, double max) {
+		double[] deviations = new double[(int) max + 1];
+		for (int value = 0; value < deviations.length; value++)
+			deviations[value] = value - mean;
+		return deviations;
+	}
+
+	/**
+	 * Does the work of colormap() for 8-bit or 16-bit pixels a vector of lanes at
+	 * a time, for RGB or indexed colormaps (or none). nMDPs are also stored at
+	 * nMDPs[i - from] (BACKGROUND outside the ROI) if nMDPs is not null.
+	 * Implemented by ColocalizationVectorKernel.
+	 */
+	interface Lanes {
+		void colormap(Object pixels1, Object pixels2, int from, int to, ColocalizationKernel kernel, Object pixels,
+				double[] nMDPs, long[] counts);
+	}
+
+	// Loads the vector kernel. It needs JDK 16 or later started with --add-modules
+	// jdk.incubator.vector and can be turned off with -Dcolocalization.vector=false.
+	private static Lanes lanes() {
+		if ("false".equals(System.getProperty("colocalization.vector")))
+			return null;
+		try {
+			return (Lanes) Class.forName("Colocalization_Colormap_.ColocalizationVectorKernel").getDeclaredConstructor()
+					.newInstance();
+		} catch (Throwable e) { // Not compiled, an older JVM or the module is not added
+			return null;
+		}
+	}
+
+	/**
+	 * Pixels of two images of the same size, read band by band. A band is {plane
+	 * (1-based), from, to, strip}: it covers pixels [from, to) of the processors
+	 * returned by read(), which hold the whole plane or the strip of rows starting
+	 * at row strip. Bands are listed in pixel order. The band of a single row is
+	 * read on its own if the source is read in strips (see IcorrEstimate).
+	 */
+	interface Source {
+		int[][] bands();
+
+		ImageProcessor[] read(int[] band); // {processor1, processor2}
+
+		int[] row(int plane, int y); // the band of row y of a plane
+	}
+
+	/**
+	 * Returns the source of two stacks held in memory (or virtual stacks), which
+	 * are read plane by plane
+	 */
+	static Source source(final ImageStack stack1, final ImageStack stack2) {
+		return new Source() {
+			public int[][] bands() {
+				return ColocalizationKernel.bands(stack1);
+			}
+
+			public ImageProcessor[] read(int[] band) {
+				return new ImageProcessor[] { stack1.getProcessor(band[0]), stack2.getProcessor(band[0]) };
+			}
+
+			public int[] row(int plane, int y) {
+				return new int[] { plane, y * stack1.getWidth(), (y + 1) * stack1.getWidth(), 0 };
+			}
+		};
+	}
+
+	/**
+	 * Returns the source of two TIFF files read in strips of at most TILE pixels,
+	 * so that only the strips being processed are kept in memory
+	 */
+	static Source source(final TiffStrips strips1, final TiffStrips strips2) {
+		return new Source() {
+			public int[][] bands() {
+				int width = strips1.width;
+				int height = strips1.height;
+				int rows = Math.max(1, TILE / Math.max(1, width));
+				int perplane = (height + rows - 1) / rows;
+				int[][] bands = new int[strips1.depth * perplane][];
+				int n = 0;
+				for (int plane = 1; plane <= strips1.depth; plane++)
+					for (int y = 0; y < height; y += rows)
+						bands[n++] = new int[] { plane, 0, (Math.min(height, y + rows) - y) * width, y };
+				return bands;
+			}
+
+			public ImageProcessor[] read(int[] band) {
+				int width = strips1.width;
+				int rows = band[2] / width;
+				try {
+					return new ImageProcessor[] { processor(width, rows, strips1.read(band[0], band[3], rows)),
+							processor(width, rows, strips2.read(band[0], band[3], rows)) };
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			public int[] row(int plane, int y) {
+				return new int[] { plane, 0, strips1.width, y };
+			}
+		};
+	}
+
+	private static ImageProcessor processor(int width, int height, Object pixels) {
+		if (pixels instanceof byte[])
+			return new ByteProcessor(width, height, (byte[]) pixels);
+		return new ShortProcessor(width, height, (short[]) pixels, null);
+	}
+
+	/**
+	 * Adds sums, count and maxima of the ROIs of whole stacks to stats
+	 */
+	void statistics(ImageStack stack1, ImageStack stack2, long[] stats) {
+		statistics(source(stack1, stack2), stats);
+	}
+
+	/**
+	 * Adds sums, count and maxima of the ROIs of all bands of source to stats
+	 */
+	void statistics(final Source source, final long[] stats) {
+		List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+		for (final int[] band : source.bands())
+			tasks.add(new Callable<long[]>() {
+				public long[] call() {
+					long[] partial = new long[STATISTICS];
+					ImageProcessor[] processors = source.read(band);
+					statistics(processors[0], processors[1], band[1], band[2], partial);
+					return partial;
+				}
+			});
+		run(tasks, new Consumer<long[]>() {
+			public void accept(long[] partial) {
+				stats[SUM1] += partial[SUM1];
+				stats[SUM2] += partial[SUM2];
+				stats[COUNT] += partial[COUNT];
+				stats[MAX1] = Math.max(stats[MAX1], partial[MAX1]);
+				stats[MAX2] = Math.max(stats[MAX2], partial[MAX2]);
+			}
+		});
+	}
+
+	/**
+	 * Calculates nMDPs and the 'jet' colormap of whole stacks. Appends nMDPs to
+	 * nMDPs (in pixel order) and to summary if they are not null, adds the number
+	 * of positive and of all nMDPs to counts and returns the colormap stack (null
+	 * if image is false).
+	 */
+	ImageStack colormap(ImageStack stack1, ImageStack stack2, NMDPBuffer nMDPs, NMDPSummary summary, long[] counts,
+			boolean image) {
+		if (!image) {
+			colormap(source(stack1, stack2), nMDPs, summary, counts, null);
+			return null;
+		}
+		final int width = stack1.getWidth();
+		final int height = stack1.getHeight();
+		final ImageStack colocalizationstack = new ImageStack(width, height);
+		colormap(source(stack1, stack2), nMDPs, summary, counts, new Consumer<Object>() {
+			public void accept(Object plane) {
+				colocalizationstack.addSlice("", plane);
+			}
+		});
+		return colocalizationstack;
+	}
+
+	/**
+	 * Calculates nMDPs and the colormap of all bands of source like the method
+	 * above, but passes the colormap pixels (of the type set by type) to rgb (in
+	 * pixel order) as soon as they are complete: whole planes for stacks, strips
+	 * for TIFF files. Only pixels of the bands being processed are allocated, so
+	 * memory use does not depend on the size of the images. No colormap is
+	 * calculated if rgb is null. nMDPs are also counted per plane and ROI if
+	 * regions is set, while the pixels of a band are still in the cache.
+	 */
+	void colormap(final Source source, final NMDPBuffer nMDPs, final NMDPSummary summary, final long[] counts,
+			final Consumer<Object> rgb) {
+		final Map<Long, Object> colormaps = new ConcurrentHashMap<Long, Object>(); // pixels being calculated
+		final boolean table = nMDPs != null;
+		List<Callable<Object[]>> tasks = new ArrayList<Callable<Object[]>>();
+		for (final int[] band : source.bands())
+			tasks.add(new Callable<Object[]>() {
+				public Object[] call() {
+					long[] partial = new long[COUNTS];
+					NMDPBuffer values = table ? new NMDPBuffer() : null;
+					NMDPSummary distribution = summary != null ? new NMDPSummary() : null;
+					final ImageProcessor[] processors = source.read(band);
+					Object pixels = null;
+					if (rgb != null)
+						pixels = colormaps.computeIfAbsent(key(band), new Function<Long, Object>() {
+							public Object apply(Long key) {
+								int length = processors[0].getPixelCount();
+								return type == INDEXED ? new byte[length] : type == FLOAT ? new float[length] : new int[length];
+							}
+						});
+					colormap(processors[0], processors[1], band[1], band[2], pixels, values,
+							distribution, partial);
+					Object[] mask = regions != null ? regions.mask(band[0]) : null; // ROI labels of the plane
+					long[] labels = null; // counts of each label
+					if (mask != null) {
+						labels = new long[COUNTS * ((int[][]) mask[1]).length];
+						count(processors[0], processors[1], band[1], band[2], (int[]) mask[0],
+								band[3] * processors[0].getWidth(), labels);
+					}
+					return new Object[] { partial, values, distribution, band, mask, labels };
+				}
+			});
+		run(tasks, new Consumer<Object[]>() {
+			public void accept(Object[] result) {
+				long[] partial = (long[]) result[0];
+				counts[POSITIVE] += partial[POSITIVE];
+				counts[ALL] += partial[ALL];
+				if (table)
+					nMDPs.add((NMDPBuffer) result[1]);
+				if (summary != null)
+					summary.add((NMDPSummary) result[2]);
+				int[] band = (int[]) result[3];
+				if (regions != null)
+					regions.add(band[0], partial, (Object[]) result[4], (long[]) result[5]);
+				if (rgb != null && band[2] == Array.getLength(colormaps.get(key(band)))) // The last band of the pixels
+					rgb.accept(colormaps.remove(key(band)));
+			}
+		});
+	}
+
+	// Identifies the colormap pixels a band is written to (plane and strip)
+	private static Long key(int[] band) {
+		return ((long) band[0] << 32) | band[3];
+	}
+
+	/**
+	 * Builds the joint histogram of the ROI pixels of whole stacks (dense for
+	 * 8-bit input)
+	 */
+	JointHistogram histogram(ImageStack stack1, ImageStack stack2, boolean dense) {
+		return histogram(source(stack1, stack2), dense);
+	}
+
+	/**
+	 * Builds the joint histogram of the ROI pixels of all bands of source. Each
+	 * thread fills its own histogram; counts are merged afterwards, which gives the
+	 * same result for any number of threads. The histograms share an overflow
+	 * flag, so no thread grows its table further once one of them overflows.
+	 */
+	JointHistogram histogram(final Source source, final boolean dense) {
+		final Map<Thread, JointHistogram> histograms = new ConcurrentHashMap<Thread, JointHistogram>();
+		final AtomicBoolean overflowed = new AtomicBoolean(); // set when any thread's histogram overflows
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final int[] band : source.bands())
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					JointHistogram histogram = histograms.get(Thread.currentThread());
+					if (histogram == null) {
+						histogram = new JointHistogram(dense, threshold1, threshold2, overflowed);
+						histograms.put(Thread.currentThread(), histogram);
+					}
+					ImageProcessor[] processors = source.read(band);
+					histogram.add(processors[0], processors[1], band[1], band[2]);
+					return null;
+				}
+			});
+		run(tasks, new Consumer<Object>() {
+			public void accept(Object result) {
+			}
+		});
+		JointHistogram histogram = new JointHistogram(dense, threshold1, threshold2);
+		for (JointHistogram partial : histograms.values())
+			histogram.add(partial);
+		return histogram;
+	}
+
+	/**
+	 * Splits a stack into bands of rows given as {plane (1-based), from, to, 0}.
+	 * Planes of virtual stacks are not split, so that each plane is read once.
+	 */
+	static int[][] bands(ImageStack stack) {
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int rows = stack.isVirtual() ? height : Math.max(1, BAND / Math.max(1, width));
+		int perplane = (height + rows - 1) / rows;
+		int[][] bands = new int[stack.getSize() * perplane][];
+		int n = 0;
+		for (int plane = 1; plane <= stack.getSize(); plane++)
+			for (int y = 0; y < height; y += rows)
+				bands[n++] = new int[] { plane, y * width, Math.min(height, y + rows) * width, 0 };
+		return bands;
+	}
+
+	/**
+	 * Runs tasks on a ForkJoin pool of the given number of threads (or in the
+	 * calling thread) and passes their results to consumer in the order of the
+	 * tasks. Only a few tasks per thread are submitted ahead of the one being
+	 * consumed, so results waiting to be merged take bounded memory.
+	 */
+	<T> void run(List<Callable<T>> tasks, Consumer<T> consumer) {
+		try {
+			if (threads <= 1 || tasks.size() == 1) {
+				for (int i = 0; i < tasks.size(); i++) {
+					consumer.accept(tasks.get(i).call());
+					progress.progress(i + 1, tasks.size()); // Reports bands done
+				}
+				return;
+			}
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				ArrayDeque<Future<T>> pending = new ArrayDeque<Future<T>>();
+				int next = 0;
+				for (int done = 1; done <= tasks.size(); done++) {
+					while (next < tasks.size() && pending.size() < threads * 4)
+						pending.add(pool.submit(tasks.get(next++)));
+					consumer.accept(pending.poll().get());
+					progress.progress(done, tasks.size()); // Reports bands done
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds sums, count and maxima of the ROI pixels with indices from (inclusive)
+	 * to (exclusive) to stats. Sums are kept as long values, so the result does not
+	 * depend on the order in which planes or parts of planes are processed.
+	 */
+	void statistics(ImageProcessor processor1, ImageProcessor processor2, int from, int to, long[] stats) {
+		Object pixels1 = processor1.getPixels();
+		Object pixels2 = processor2.getPixels();
+		if (pixels1 instanceof byte[] && pixels2 instanceof byte[])
+			statistics8((byte[]) pixels1, (byte[]) pixels2, from, to, stats);
+		else if (pixels1 instanceof short[] && pixels2 instanceof short[])
+			statistics16((short[]) pixels1, (short[]) pixels2, from, to, stats);
+		else
+			statisticsAny(processor1, processor2, from, to, stats);
+	}
+
+	private void statistics8(byte[] pixels1, byte[] pixels2, int from, int to, long[] stats) {
+		long sum1 = 0, sum2 = 0, count = 0, max1 = stats[MAX1], max2 = stats[MAX2];
+		for (int i = from; i < to; i++) {
+			int value1 = pixels1[i] & 0xff;
+			int value2 = pixels2[i] & 0xff;
+			if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+				sum1 += value1;
+				sum2 += value2;
+				count++;
+				if (value1 > max1)
+					max1 = value1;
+				if (value2 > max2)
+					max2 = value2;
+			}
+		}
+		add(stats, sum1, sum2, count, max1, max2);
+	}
+
+	private void statistics16(short[] pixels1, short[] pixels2, int from, int to, long[] stats) {
+		long sum1 = 0, sum2 = 0, count = 0, max1 = stats[MAX1], max2 = stats[MAX2];
+		for (int i = from; i < to; i++) {
+			int value1 = pixels1[i] & 0xffff;
+			int value2 = pixels2[i] & 0xffff;
+			if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+				sum1 += value1;
+				sum2 += value2;
+				count++;
+				if (value1 > max1)
+					max1 = value1;
+				if (value2 > max2)
+					max2 = value2;
+			}
+		}
+		add(stats, sum1, sum2, count, max1, max2);
+	}
+
+	// Fallback for inputs of mixed or unsupported types (e.g. in batch mode)
+	private void statisticsAny(ImageProcessor processor1, ImageProcessor processor2, int from, int to,
+			long[] stats) {
+		int width = processor1.getWidth();
+		long sum1 = 0, sum2 = 0, count = 0, max1 = stats[MAX1], max2 = stats[MAX2];
+		for (int i = from; i < to; i++) {
+			int value1 = processor1.getPixel(i % width, i / width);
+			int value2 = processor2.getPixel(i % width, i / width);
+			if (value1 >= threshold1 || value2 >= threshold2) {
+				sum1 += value1;
+				sum2 += value2;
+				count++;
+				if (value1 > max1)
+					max1 = value1;
+				if (value2 > max2)
+					max2 = value2;
+			}
+		}
+		add(stats, sum1, sum2, count, max1, max2);
+	}
+
+	private static void add(long[] stats, long sum1, long sum2, long count, long max1, long max2) {
+		stats[SUM1] += sum1;
+		stats[SUM2] += sum2;
+		stats[COUNT] += count;
+		stats[MAX1] = max1;
+		stats[MAX2] = max2;
+	}
+
+	/**
+	 * Calculates nMDPs of the pixels with indices from (inclusive) to (exclusive),
+	 * writes the colormap into pixels if it is not null (int[] 'jet' colors, byte[]
+	 * indices or float[] nMDPs), appends nMDPs to nMDPs and to summary if they are
+	 * not null and adds the number of positive and of all nMDPs to counts.
+	 */
+	void colormap(ImageProcessor processor1, ImageProcessor processor2, int from, int to, Object rgb,
+			NMDPBuffer nMDPs, NMDPSummary summary, long[] counts) {
+		Object pixels1 = processor1.getPixels();
+		Object pixels2 = processor2.getPixels();
+		if (LANES != null && !(rgb instanceof float[]) && (pixels1 instanceof byte[] && pixels2 instanceof byte[]
+				|| pixels1 instanceof short[] && pixels2 instanceof short[]))
+			colormapLanes(pixels1, pixels2, from, to, rgb, nMDPs, summary, counts);
+		else if (pixels1 instanceof byte[] && pixels2 instanceof byte[])
+			colormap8((byte[]) pixels1, (byte[]) pixels2, from, to, rgb, nMDPs, summary, counts);
+		else if (pixels1 instanceof short[] && pixels2 instanceof short[])
+			colormap16((short[]) pixels1, (short[]) pixels2, from, to, rgb, nMDPs, summary, counts);
+		else
+			colormapAny(processor1, processor2, from, to, rgb, nMDPs, summary, counts);
+	}
+
+	private void colormap8(byte[] pixels1, byte[] pixels2, int from, int to, Object pixels,
+			NMDPBuffer nMDPs, NMDPSummary summary, long[] counts) {
+		int[] rgb = pixels instanceof int[] ? (int[]) pixels : null; // RGB colormap
+		byte[] indices = pixels instanceof byte[] ? (byte[]) pixels : null; // indexed colormap
+		float[] values = pixels instanceof float[] ? (float[]) pixels : null; // nMDP image
+		double[] deviations1 = this.deviations1, deviations2 = this.deviations2;
+		long positive = 0, all = 0;
+		for (int i = from; i < to; i++) {
+			int value1 = pixels1[i] & 0xff;
+			int value2 = pixels2[i] & 0xff;
+			if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+				double nMDP = (deviations1[value1] * deviations2[value2]) / denominator;
+				if (nMDP > 1)
+					nMDP = 1;
+				if (nMDP < -1)
+					nMDP = -1;
+				if (nMDP > 0)
+					positive++;
+				all++;
+				if (nMDPs != null)
+					nMDPs.add(nMDP);
+				if (summary != null)
+					summary.add(nMDP);
+				if (rgb != null)
+					rgb[i] = colormap[nMDP8bit(nMDP)];
+				else if (indices != null)
+					indices[i] = (byte) Math.max(1, nMDP8bit(nMDP)); // Index 0 is kept for the background
+				else if (values != null)
+					values[i] = (float) nMDP;
+			} else if (rgb != null)
+				rgb[i] = 0;
+			else if (indices != null)
+				indices[i] = 0;
+			else if (values != null)
+				values[i] = Float.NaN;
+		}
+		counts[POSITIVE] += positive;
+		counts[ALL] += all;
+	}
+
+	private void colormap16(short[] pixels1, short[] pixels2, int from, int to, Object pixels,
+			NMDPBuffer nMDPs, NMDPSummary summary, long[] counts) {
+		int[] rgb = pixels instanceof int[] ? (int[]) pixels : null; // RGB colormap
+		byte[] indices = pixels instanceof byte[] ? (byte[]) pixels : null; // indexed colormap
+		float[] values = pixels instanceof float[] ? (float[]) pixels : null; // nMDP image
+		double[] deviations1 = this.deviations1, deviations2 = this.deviations2;
+		long positive = 0, all = 0;
+		for (int i = from; i < to; i++) {
+			int value1 = pixels1[i] & 0xffff;
+			int value2 = pixels2[i] & 0xffff;
+			if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+				double nMDP = (deviations1[value1] * deviations2[value2]) / denominator;
+				if (nMDP > 1)
+					nMDP = 1;
+				if (nMDP < -1)
+					nMDP = -1;
+				if (nMDP > 0)
+					positive++;
+				all++;
+				if (nMDPs != null)
+					nMDPs.add(nMDP);
+				if (summary != null)
+					summary.add(nMDP);
+				if (rgb != null)
+					rgb[i] = colormap[nMDP8bit(nMDP)];
+				else if (indices != null)
+					indices[i] = (byte) Math.max(1, nMDP8bit(nMDP)); // Index 0 is kept for the background
+				else if (values != null)
+					values[i] = (float) nMDP;
+			} else if (rgb != null)
+				rgb[i] = 0;
+			else if (indices != null)
+				indices[i] = 0;
+			else if (values != null)
+				values[i] = Float.NaN;
+		}
+		counts[POSITIVE] += positive;
+		counts[ALL] += all;
+	}
+
+	// The vector kernel writes the colormap chunk by chunk and returns nMDPs of
+	// the chunk if they are kept, which are then added one at a time
+	private void colormapLanes(Object pixels1, Object pixels2, int from, int to, Object pixels,
+			NMDPBuffer nMDPs, NMDPSummary summary, long[] counts) {
+		double[] chunk = nMDPs != null || summary != null ? new double[LANE_CHUNK] : null;
+		for (int start = from; start < to; start += LANE_CHUNK) {
+			int end = Math.min(to, start + LANE_CHUNK);
+			LANES.colormap(pixels1, pixels2, start, end, this, pixels, chunk, counts);
+			if (chunk != null)
+				for (int i = 0; i < end - start; i++) {
+					double nMDP = chunk[i];
+					if (nMDP != BACKGROUND) {
+						if (nMDPs != null)
+							nMDPs.add(nMDP);
+						if (summary != null)
+							summary.add(nMDP);
+					}
+				}
+		}
+	}
+
+	private void colormapAny(ImageProcessor processor1, ImageProcessor processor2, int from, int to, Object pixels,
+			NMDPBuffer nMDPs, NMDPSummary summary, long[] counts) {
+		int width = processor1.getWidth();
+		int[] rgb = pixels instanceof int[] ? (int[]) pixels : null; // RGB colormap
+		byte[] indices = pixels instanceof byte[] ? (byte[]) pixels : null; // indexed colormap
+		float[] values = pixels instanceof float[] ? (float[]) pixels : null; // nMDP image
+		long positive = 0, all = 0;
+		for (int i = from; i < to; i++) {
+			int value1 = processor1.getPixel(i % width, i / width);
+			int value2 = processor2.getPixel(i % width, i / width);
+			if (value1 >= threshold1 || value2 >= threshold2) {
+				double nMDP = nMDP(value1, value2);
+				if (nMDP > 0)
+					positive++;
+				all++;
+				if (nMDPs != null)
+					nMDPs.add(nMDP);
+				if (summary != null)
+					summary.add(nMDP);
+				if (rgb != null)
+					rgb[i] = colormap[nMDP8bit(nMDP)];
+				else if (indices != null)
+					indices[i] = (byte) Math.max(1, nMDP8bit(nMDP)); // Index 0 is kept for the background
+				else if (values != null)
+					values[i] = (float) nMDP;
+			} else if (rgb != null)
+				rgb[i] = 0;
+			else if (indices != null)
+				indices[i] = 0;
+			else if (values != null)
+				values[i] = Float.NaN;
+		}
+		counts[POSITIVE] += positive;
+		counts[ALL] += all;
+	}
+
+	/**
+	 * Adds the number of positive and of all nMDPs of the pixels with indices from
+	 * (inclusive) to (exclusive) to the counts of their labels (at COUNTS * label
+	 * + POSITIVE and COUNTS * label + ALL). The label of pixel i is labels[offset +
+	 * i]; pixels of label 0 are not counted.
+	 */
+	void count(ImageProcessor processor1, ImageProcessor processor2, int from, int to, int[] labels, int offset,
+			long[] counts) {
+		Object pixels1 = processor1.getPixels();
+		Object pixels2 = processor2.getPixels();
+		double[] deviations1 = this.deviations1, deviations2 = this.deviations2;
+		if (pixels1 instanceof byte[] && pixels2 instanceof byte[]) {
+			byte[] bytes1 = (byte[]) pixels1, bytes2 = (byte[]) pixels2;
+			for (int i = from; i < to; i++) {
+				int label = labels[offset + i];
+				int value1 = bytes1[i] & 0xff;
+				int value2 = bytes2[i] & 0xff;
+				if (label != 0 && (value1 >= threshold1 || value2 >= threshold2)) { // Only pixels in the ROI are taken into account
+					if ((deviations1[value1] * deviations2[value2]) / denominator > 0)
+						counts[COUNTS * label + POSITIVE]++;
+					counts[COUNTS * label + ALL]++;
+				}
+			}
+		} else if (pixels1 instanceof short[] && pixels2 instanceof short[]) {
+			short[] shorts1 = (short[]) pixels1, shorts2 = (short[]) pixels2;
+			for (int i = from; i < to; i++) {
+				int label = labels[offset + i];
+				int value1 = shorts1[i] & 0xffff;
+				int value2 = shorts2[i] & 0xffff;
+				if (label != 0 && (value1 >= threshold1 || value2 >= threshold2)) { // Only pixels in the ROI are taken into account
+					if ((deviations1[value1] * deviations2[value2]) / denominator > 0)
+						counts[COUNTS * label + POSITIVE]++;
+					counts[COUNTS * label + ALL]++;
+				}
+			}
+		} else {
+			int width = processor1.getWidth();
+			for (int i = from; i < to; i++) {
+				int label = labels[offset + i];
+				int value1 = processor1.getPixel(i % width, i / width);
+				int value2 = processor2.getPixel(i % width, i / width);
+				if (label != 0 && (value1 >= threshold1 || value2 >= threshold2)) {
+					if (nMDP(value1, value2) > 0)
+						counts[COUNTS * label + POSITIVE]++;
+					counts[COUNTS * label + ALL]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates nMDP for a pair of corresponding pixels, limited to [-1, 1]
+	 */
+	double nMDP(int value1, int value2) {
+		double deviation1 = value1 < deviations1.length ? deviations1[value1] : value1 - mean1;
+		double deviation2 = value2 < deviations2.length ? deviations2[value2] : value2 - mean2;
+		double nMDP = (deviation1 * deviation2) / denominator;
+		if (nMDP > 1)
+			nMDP = 1;
+		if (nMDP < -1)
+			nMDP = -1;
+		return nMDP;
+	}
+
+	/**
+	 * Maps nMDP value onto 8-bit range of 256 indices
+	 */
+	static int nMDP8bit(double nMDP) {
+		return (int) Math.round(((nMDP + 1) / 2) * 255);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,291 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Result of ColocalizationEngine.colocalize() for all pairs of the channels of
+ * a multi-channel image (or of several images of the same size): thresholds of
+ * the channels and results of each pair of channels, from which the matrix of
+ * Icorr values is assembled. Each channel is decoded and autothresholded once;
+ * the pairs are then colocalized in parallel over the same planes with these
+ * thresholds, which gives the same results as colocalizing each pair on its
+ * own.
+ */
+public final class ColocalizationMatrix {
+	public String[] names; // names of the channels
+	public double[] thresholds; // the threshold of each channel
+	public ColocalizationResult[][] results; // results of channels i < j (null if the pair could not be processed)
+
+	/**
+	 * Destination of the results of each pair of channels, so that the nMDPs and
+	 * the colormap of a pair are written as they are calculated or saved as soon
+	 * as the pair is done, instead of being kept until all pairs are done. Pairs
+	 * are numbered in the order of the matrix (i < j, row by row).
+	 */
+	interface PairOutput {
+		// Sets the outputs of engine before the pair is colocalized and returns the
+		// files to be closed when it is done (or null)
+		Closeable open(int pair, String name, ColocalizationEngine engine) throws IOException;
+
+		// Saves the results of the pair (null if it could not be processed)
+		void save(int pair, String name, ColocalizationResult result) throws IOException;
+	}
+
+	/**
+	 * Returns Icorr of channels i and j (NaN if the pair could not be processed or
+	 * i == j)
+	 */
+	public double Icorr(int i, int j) {
+		ColocalizationResult result = i < j ? results[i][j] : results[j][i];
+		return i != j && result != null ? result.Icorr : Double.NaN;
+	}
+
+	/**
+	 * Returns the name of the pair of channels i < j
+	 */
+	public String name(int i, int j) {
+		return names[i] + " and " + names[j];
+	}
+
+	/**
+	 * Returns the Icorr matrix as tab-separated lines, the first of which holds
+	 * the names of the channels (cells of the diagonal and of failed pairs are
+	 * empty)
+	 */
+	public String[] lines() {
+		String[] lines = new String[names.length + 1];
+		StringBuilder line = new StringBuilder("Channel");
+		for (String name : names)
+			line.append('\t').append(name);
+		lines[0] = line.toString();
+		for (int i = 0; i < names.length; i++) {
+			line = new StringBuilder(names[i]);
+			for (int j = 0; j < names.length; j++) {
+				double Icorr = Icorr(i, j);
+				line.append('\t').append(Double.isNaN(Icorr) ? "" : String.valueOf(Icorr));
+			}
+			lines[i + 1] = line.toString();
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes the Icorr matrix followed by the thresholds of the channels
+	 */
+	void write(PrintWriter writer) {
+		for (String line : lines())
+			writer.println(line);
+		writer.println();
+		writer.println("Channel\tThreshold");
+		for (int i = 0; i < names.length; i++)
+			writer.println(names[i] + "\t" + thresholds[i]);
+	}
+
+	/**
+	 * Returns the channels of a composite image or hyperstack as images whose
+	 * stacks hold the planes (slices and frames) of each channel. Planes are
+	 * shared with the image, or read once if its stack is virtual.
+	 */
+	public static ImagePlus[] channels(ImagePlus image) {
+		int channels = image.getNChannels();
+		int slices = image.getNSlices();
+		int frames = image.getNFrames();
+		ImageStack stack = image.getImageStack();
+		ImagePlus[] images = new ImagePlus[channels];
+		for (int c = 1; c <= channels; c++) {
+			ImageStack channel = new ImageStack(image.getWidth(), image.getHeight());
+			for (int t = 1; t <= frames; t++)
+				for (int z = 1; z <= slices; z++) {
+					int index = image.getStackIndex(c, z, t);
+					channel.addSlice(stack.getSliceLabel(index), stack.getProcessor(index).getPixels());
+				}
+			images[c - 1] = new ImagePlus("C" + c + "-" + image.getTitle(), channel);
+			images[c - 1].setCalibration(image.getCalibration());
+		}
+		return images;
+	}
+
+	/**
+	 * Colocalizes all pairs of the given images (8-bit or 16-bit grayscale images
+	 * or stacks of the same size) with the settings of engine. Thresholds are
+	 * calculated once per image, or taken from engine.thresholds if autothreshold
+	 * is off. Up to engine.threads pairs are processed at the same time and
+	 * share the threads. A pair that can not be processed (e.g. its ROI is empty)
+	 * is logged and left out of the matrix.
+	 */
+	static ColocalizationMatrix colocalize(ColocalizationEngine engine, ImagePlus[] channels)
+			throws ColocalizationException {
+		return colocalize(engine, channels, null);
+	}
+
+	/**
+	 * Colocalizes all pairs of the given images like the method above, but passes
+	 * each pair to output as soon as it is done. Colormaps and nMDPs of the pairs
+	 * are then released, so the matrix only holds Icorr, thresholds and
+	 * statistics of the pairs.
+	 */
+	static ColocalizationMatrix colocalize(final ColocalizationEngine engine, final ImagePlus[] channels,
+			final PairOutput output) throws ColocalizationException {
+		if (channels.length < 2)
+			throw new ColocalizationException("At least two channels are needed");
+		for (ImagePlus channel : channels) {
+			if (channel.getBitDepth() > 16)
+				throw new ColocalizationException("Convert " + channel.getTitle() + " image to 8-bit or 16-bit grayscale.");
+			if (channel.getBitDepth() != channels[0].getBitDepth())
+				throw new ColocalizationException("Images must have the same bit depth.");
+			if (channel.getWidth() != channels[0].getWidth() || channel.getHeight() != channels[0].getHeight()
+					|| channel.getStackSize() != channels[0].getStackSize())
+				throw new ColocalizationException("The source images or image stacks must have the same size");
+		}
+		final ColocalizationMatrix matrix = new ColocalizationMatrix();
+		int n = channels.length;
+		matrix.names = new String[n];
+		for (int i = 0; i < n; i++)
+			matrix.names[i] = channels[i].getTitle();
+		matrix.results = new ColocalizationResult[n][n];
+		int workers = Math.max(1, Math.min(engine.threads, n * (n - 1) / 2)); // pairs processed at the same time
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try {
+			/**
+			 * Gets manual thresholds or calculates the autothreshold of each channel
+			 */
+			if (engine.autothreshold == false) {
+				if (engine.thresholds == null || engine.thresholds.length != n)
+					throw new ColocalizationException(
+							"The threshold value for at least one of the channels has not been specified");
+				matrix.thresholds = engine.thresholds.clone();
+			} else {
+				engine.progress.status("Calculating thresholds of " + n + " channels..."); // Updates process status
+				matrix.thresholds = new double[n];
+				List<Future<Double>> thresholds = new ArrayList<Future<Double>>();
+				for (final ImagePlus channel : channels)
+					thresholds.add(pool.submit(new Callable<Double>() {
+						public Double call() {
+							return threshold(channel);
+						}
+					}));
+				for (int i = 0; i < n; i++)
+					matrix.thresholds[i] = get(thresholds.get(i));
+			}
+			for (int i = 0; i < n; i++)
+				engine.progress.log("Threshold " + matrix.names[i] + ": " + matrix.thresholds[i]); // Updates log
+			/**
+			 * Colocalizes the pairs of channels with these thresholds
+			 */
+			List<Future<ColocalizationResult>> pairs = new ArrayList<Future<ColocalizationResult>>();
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++) {
+					final ColocalizationEngine pair = new ColocalizationEngine(); // settings of the pair
+					pair.autothreshold = false;
+					pair.threshold1 = matrix.thresholds[i];
+					pair.threshold2 = matrix.thresholds[j];
+					pair.colormap = engine.colormap;
+					pair.colormapformat = engine.colormapformat;
+					pair.nMDPs = engine.nMDPs;
+					pair.summary = engine.summary;
+					pair.regions = engine.regions;
+					pair.rois = engine.rois;
+					pair.significance = engine.significance;
+					pair.resamples = engine.resamples;
+					pair.block = engine.block;
+					pair.seed = engine.seed;
+					pair.sampling = engine.sampling;
+					pair.precision = engine.precision;
+					pair.threads = Math.max(1, engine.threads / workers); // Threads are shared by parallel pairs
+					pair.progress = engine.progress;
+					final ImagePlus image1 = channels[i];
+					final ImagePlus image2 = channels[j];
+					final String name = matrix.name(i, j);
+					final int index = pairs.size(); // the number of the pair
+					pairs.add(pool.submit(new Callable<ColocalizationResult>() {
+						public ColocalizationResult call() throws IOException {
+							pair.progress.log("Processing channels " + name); // Updates log
+							if (output == null)
+								try {
+									return pair.colocalize(image1, image2);
+								} catch (ColocalizationException e) {
+									pair.progress.log(name + ": " + e.getMessage()); // Updates log
+									return null;
+								}
+							ColocalizationResult result = null;
+							try {
+								Closeable files = output.open(index, name, pair);
+								try {
+									result = pair.colocalize(image1, image2);
+								} catch (ColocalizationException e) {
+									pair.progress.log(name + ": " + e.getMessage()); // Updates log
+								} finally {
+									if (files != null)
+										files.close();
+								}
+							} finally {
+								output.save(index, name, result);
+							}
+							if (result != null) { // Only Icorr and statistics are kept
+								result.colormap = null;
+								result.nMDPs = null;
+							}
+							return result;
+						}
+					}));
+				}
+			int k = 0;
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++) {
+					matrix.results[i][j] = get(pairs.get(k++));
+					engine.progress.progress(k, pairs.size()); // Reports pairs done
+				}
+		} finally {
+			pool.shutdownNow();
+		}
+		return matrix;
+	}
+
+	// Calculates the autothreshold of a channel like ColocalizationEngine does for a pair
+	private static double threshold(ImagePlus channel) {
+		if (StackThreshold.supported(channel) == false)
+			return StackThreshold.threshold(channel);
+		ImageStack stack = channel.getImageStack();
+		long[] histogram = new long[1 << channel.getBitDepth()];
+		for (int plane = 1; plane <= stack.getSize(); plane++) {
+			Object pixels = stack.getPixels(plane);
+			if (pixels instanceof byte[])
+				for (byte value : (byte[]) pixels)
+					histogram[value & 0xff]++;
+			else
+				for (short value : (short[]) pixels)
+					histogram[value & 0xffff]++;
+		}
+		return StackThreshold.threshold(channel, histogram);
+	}
+
+	// Waits for a task and rethrows its failure
+	private static <T> T get(Future<T> future) throws ColocalizationException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ColocalizationException("The colocalization of the channels has been interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new ColocalizationException(e.getCause().getMessage());
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.util.Locale;
+
+/**
+ * Wall time, the number of pixels processed and peak used heap of each phase
+ * of the colocalization of a pair, for sizing of machines and finding pairs
+ * that take long. The time of a phase does not include the time of phases
+ * nested in it (e.g. writing nMDP files during the nMDP pass), so times of all
+ * phases add up to the time of the pair. Peak heap is sampled when progress is
+ * reported, at the start and at the end of a phase; it is the heap of the whole
+ * JVM (including pairs processed in parallel).
+ */
+public final class ColocalizationMetrics {
+	// Phases of the colocalization
+	public static final int LOAD = 0; // loading of the images (batch mode)
+	public static final int THRESHOLD = 1; // autothresholds
+	public static final int STATISTICS = 2; // means and maxima of the ROIs
+	public static final int COLORMAP = 3; // nMDPs, Icorr and the colormap
+	public static final int NMDP_WRITE = 4; // writing of nMDP files
+	public static final int COLORMAP_WRITE = 5; // streaming of colormap files
+	public static final int SIGNIFICANCE = 6; // resamples of the significance test
+	public static final int SAVE = 7; // saving of the colormap and summary (batch mode)
+	public static final String[] PHASES = { "Load", "Threshold", "Statistics", "nMDPs and colormap", "nMDP write",
+			"Colormap write", "Significance", "Save" };
+
+	public final long[] time = new long[PHASES.length]; // wall time of each phase in nanoseconds
+	public final long[] pixels = new long[PHASES.length]; // the number of pixels (or values) processed by each phase
+	public final long[] heap = new long[PHASES.length]; // peak used heap of each phase in bytes
+	public long count; // the number of pixels in the ROI
+	private int phase = -1; // the phase being measured (-1 if none)
+	private long start; // the start of the phase being measured in nanoseconds
+
+	/**
+	 * Starts measuring a phase
+	 */
+	void start(int phase) {
+		this.phase = phase;
+		start = System.nanoTime();
+		sample();
+	}
+
+	/**
+	 * Ends the phase being measured, which processed the given number of pixels
+	 */
+	void stop(long pixels) {
+		if (phase < 0)
+			return;
+		sample();
+		time[phase] += System.nanoTime() - start;
+		this.pixels[phase] += pixels;
+		phase = -1;
+	}
+
+	/**
+	 * Adds time and pixels of a phase nested in the phase being measured, whose
+	 * time is then not counted in the outer phase
+	 */
+	void add(int phase, long nanoseconds, long pixels) {
+		time[phase] += nanoseconds;
+		this.pixels[phase] += pixels;
+		heap[phase] = Math.max(heap[phase], used());
+		start += nanoseconds;
+	}
+
+	/**
+	 * Records used heap of the phase being measured
+	 */
+	void sample() {
+		if (phase >= 0)
+			heap[phase] = Math.max(heap[phase], used());
+	}
+
+	private static long used() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns progress that samples used heap whenever progress is reported
+	 */
+	ColocalizationEngine.Progress progress(final ColocalizationEngine.Progress progress) {
+		return new ColocalizationEngine.Progress() {
+			public void status(String message) {
+				progress.status(message);
+			}
+
+			public void log(String message) {
+				progress.log(message);
+			}
+
+			public void progress(long done, long total) {
+				sample();
+				progress.progress(done, total);
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of pixels processed per second by a phase (NaN if it
+	 * processed no pixels)
+	 */
+	public double rate(int phase) {
+		if (pixels[phase] == 0 || time[phase] == 0)
+			return Double.NaN;
+		return pixels[phase] * 1e9 / time[phase];
+	}
+
+	/**
+	 * Returns the wall time of all phases in nanoseconds
+	 */
+	public long total() {
+		long total = 0;
+		for (long nanoseconds : time)
+			total += nanoseconds;
+		return total;
+	}
+
+	/**
+	 * Adds the phases of another pair (peak heap is the highest of both)
+	 */
+	void add(ColocalizationMetrics metrics) {
+		count += metrics.count;
+		for (int i = 0; i < PHASES.length; i++) {
+			time[i] += metrics.time[i];
+			pixels[i] += metrics.pixels[i];
+			heap[i] = Math.max(heap[i], metrics.heap[i]);
+		}
+	}
+
+	/**
+	 * Returns a line describing a phase for logs, or null if it did not run
+	 */
+	String line(int phase) {
+		if (time[phase] == 0)
+			return null;
+		double rate = rate(phase);
+		return PHASES[phase] + ": " + String.format(Locale.ROOT, "%.1f", time[phase] / 1e6) + " ms"
+				+ (Double.isNaN(rate) ? "" : String.format(Locale.ROOT, ", %.1f Mpixels/s", rate / 1e6))
+				+ String.format(Locale.ROOT, ", peak heap %d MB", heap[phase] >> 20);
+	}
+
+	/**
+	 * Returns the header of the CSV file of metrics
+	 */
+	static String header() {
+		StringBuilder header = new StringBuilder("Name,Total ms,ROI pixels");
+		for (String phase : PHASES)
+			header.append(',').append(phase).append(" ms,").append(phase).append(" pixels/s,").append(phase)
+					.append(" peak heap MB");
+		return header.toString();
+	}
+
+	/**
+	 * Returns the metrics of a pair as a CSV line (the name is quoted)
+	 */
+	String csv(String name) {
+		StringBuilder line = new StringBuilder();
+		line.append('"').append(name.replace("\"", "\"\"")).append('"');
+		line.append(',').append(String.format(Locale.ROOT, "%.3f", total() / 1e6)).append(',').append(count);
+		for (int i = 0; i < PHASES.length; i++) {
+			double rate = rate(i);
+			line.append(',').append(String.format(Locale.ROOT, "%.3f", time[i] / 1e6));
+			line.append(',').append(Double.isNaN(rate) ? "" : String.format(Locale.ROOT, "%.0f", rate));
+			line.append(',').append(heap[i] >> 20);
+		}
+		return line.toString();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+/**
+ * Icorr of each plane, slice, time frame and ROI, counted in the nMDP pass of
+ * ColocalizationKernel. Planes are counted from the counts of their bands.
+ * ROIs are turned into a label mask of the plane: each label stands for a set
+ * of overlapping ROIs, so every pixel takes one lookup however many ROIs there
+ * are, and counts of a label are added to all ROIs of its set at the end. ROIs
+ * that are bound to a slice or frame only count in their planes. Only the
+ * masks of the last MASKS combinations of ROIs are kept (those of the planes
+ * being processed), so a mask is built once for all bands of a plane and once
+ * for ROIs that cover all planes, but masks of finished planes are released.
+ * <p>
+ * The means and maxima of the whole images are used, so the nMDPs of a region
+ * are those of the colormap. Icorr of a region is the fraction of positive
+ * nMDPs among its pixels in the ROI of the images (equal to or above one of the
+ * thresholds).
+ */
+public final class ColocalizationRegions {
+	static final int MASKS = 8; // the number of label masks kept
+	public final int width; // width of the images in pixels
+	public final int height; // height of the images in pixels
+	public final int slices; // the number of slices (planes are slices of all frames in turn)
+	public final int frames; // the number of time frames
+	public final Roi[] rois; // ROIs (empty if there are none)
+	public final long[][] planes; // {positive, all} nMDPs of each plane
+	public final long[][] regions; // {positive, all} nMDPs of each ROI
+	private final Map<String, Object[]> masks = new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest) {
+			return size() > MASKS;
+		}
+	}; // {labels, sets} of the last used ROI combinations
+
+	/**
+	 * Counts nMDPs of images of the given size per plane and in the given ROIs
+	 * (null for none)
+	 */
+	ColocalizationRegions(int width, int height, int slices, int frames, Roi[] rois) {
+		this.width = width;
+		this.height = height;
+		this.slices = Math.max(1, slices);
+		this.frames = Math.max(1, frames);
+		this.rois = rois != null ? rois : new Roi[0];
+		planes = new long[this.slices * this.frames][ColocalizationKernel.COUNTS];
+		regions = new long[this.rois.length][ColocalizationKernel.COUNTS];
+	}
+
+	/**
+	 * Returns the label mask of a plane (1-based) and the ROIs of each label
+	 * ({int[] labels, int[][] sets}; label 0 is outside all ROIs), or null if no
+	 * ROI covers the plane
+	 */
+	Object[] mask(int plane) {
+		int slice = (plane - 1) % slices + 1;
+		int frame = (plane - 1) / slices + 1;
+		StringBuilder key = new StringBuilder(); // indices of the ROIs of the plane
+		for (int r = 0; r < rois.length; r++) {
+			Roi roi = rois[r];
+			boolean covers;
+			if (roi.hasHyperStackPosition())
+				covers = (roi.getZPosition() == 0 || roi.getZPosition() == slice)
+						&& (roi.getTPosition() == 0 || roi.getTPosition() == frame);
+			else
+				covers = roi.getPosition() == 0 || roi.getPosition() == plane;
+			if (covers)
+				key.append(r).append(',');
+		}
+		if (key.length() == 0)
+			return null;
+		synchronized (masks) { // Bands of a plane wait for its mask instead of building it again
+			Object[] mask = masks.get(key.toString());
+			if (mask == null) {
+				mask = mask(key.toString());
+				masks.put(key.toString(), mask);
+			}
+			return mask;
+		}
+	}
+
+	// Builds the label mask of the ROIs with the given indices
+	private Object[] mask(String indices) {
+		int[] labels = new int[width * height];
+		List<int[]> sets = new ArrayList<int[]>(); // ROIs of each label
+		sets.add(new int[0]);
+		Map<Long, Integer> next = new HashMap<Long, Integer>(); // the label of a label with one more ROI
+		for (String index : indices.split(",")) {
+			int r = Integer.parseInt(index);
+			Rectangle bounds = rois[r].getBounds();
+			ImageProcessor inside = rois[r].getMask(); // null for rectangles
+			int x0 = Math.max(0, bounds.x), y0 = Math.max(0, bounds.y);
+			int x1 = Math.min(width, bounds.x + bounds.width), y1 = Math.min(height, bounds.y + bounds.height);
+			for (int y = y0; y < y1; y++)
+				for (int x = x0; x < x1; x++) {
+					if (inside != null && inside.get(x - bounds.x, y - bounds.y) == 0)
+						continue;
+					int label = labels[y * width + x];
+					Long transition = ((long) label << 32) | r;
+					Integer added = next.get(transition);
+					if (added == null) {
+						int[] set = Arrays.copyOf(sets.get(label), sets.get(label).length + 1);
+						set[set.length - 1] = r;
+						added = sets.size();
+						sets.add(set);
+						next.put(transition, added);
+					}
+					labels[y * width + x] = added;
+				}
+		}
+		return new Object[] { labels, sets.toArray(new int[sets.size()][]) };
+	}
+
+	/**
+	 * Adds counts of a band of the given plane (1-based): counts of the whole
+	 * band and, if the plane has ROIs, counts of each label
+	 */
+	void add(int plane, long[] counts, Object[] mask, long[] labels) {
+		planes[plane - 1][ColocalizationKernel.POSITIVE] += counts[ColocalizationKernel.POSITIVE];
+		planes[plane - 1][ColocalizationKernel.ALL] += counts[ColocalizationKernel.ALL];
+		if (mask == null)
+			return;
+		int[][] sets = (int[][]) mask[1];
+		for (int label = 1; label < sets.length; label++)
+			for (int r : sets[label]) {
+				regions[r][ColocalizationKernel.POSITIVE] += labels[ColocalizationKernel.COUNTS * label + ColocalizationKernel.POSITIVE];
+				regions[r][ColocalizationKernel.ALL] += labels[ColocalizationKernel.COUNTS * label + ColocalizationKernel.ALL];
+			}
+	}
+
+	/**
+	 * Returns the name of a ROI (its name in the ROI Manager or its number)
+	 */
+	public String name(int roi) {
+		String name = rois[roi].getName();
+		return name != null ? name : "ROI " + (roi + 1);
+	}
+
+	/**
+	 * Returns a table with a row for each slice and frame (if there are more than
+	 * one) and each ROI: positive and all nMDPs and Icorr
+	 */
+	public ResultsTable table() {
+		ResultsTable table = new ResultsTable();
+		table.setPrecision(9);
+		if (slices > 1)
+			for (int z = 0; z < slices; z++) {
+				long[] counts = new long[ColocalizationKernel.COUNTS];
+				for (int t = 0; t < frames; t++)
+					add(counts, planes[t * slices + z]);
+				row(table, "Slice", "Slice " + (z + 1), counts);
+			}
+		if (frames > 1)
+			for (int t = 0; t < frames; t++) {
+				long[] counts = new long[ColocalizationKernel.COUNTS];
+				for (int z = 0; z < slices; z++)
+					add(counts, planes[t * slices + z]);
+				row(table, "Frame", "Frame " + (t + 1), counts);
+			}
+		for (int r = 0; r < rois.length; r++)
+			row(table, "ROI", name(r), regions[r]);
+		return table;
+	}
+
+	private static void add(long[] counts, long[] plane) {
+		counts[ColocalizationKernel.POSITIVE] += plane[ColocalizationKernel.POSITIVE];
+		counts[ColocalizationKernel.ALL] += plane[ColocalizationKernel.ALL];
+	}
+
+	private static void row(ResultsTable table, String type, String name, long[] counts) {
+		table.addRow();
+		table.addLabel(name);
+		table.addValue("Type", type);
+		table.addValue("Positive nMDPs", counts[ColocalizationKernel.POSITIVE]);
+		table.addValue("nMDPs", counts[ColocalizationKernel.ALL]);
+		table.addValue("Icorr", (double) counts[ColocalizationKernel.POSITIVE] / counts[ColocalizationKernel.ALL]);
+	}
+}
\ No newline at end of file
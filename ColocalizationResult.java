@@ -0,0 +1,46 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import ij.ImageStack;
+
+/**
+ * Result of ColocalizationEngine.colocalize(): thresholds, statistics of the
+ * ROIs (pixels equal to or above the threshold in at least one of the images),
+ * Icorr and, if requested, the colormap, the nMDPs, the nMDP summary, the
+ * significance of Icorr and Icorr per slice, frame and ROI. If Icorr is
+ * estimated by sampling, the statistics, count and positive are those of the
+ * sample (scaled to the images) and only the estimate is kept.
+ */
+public final class ColocalizationResult {
+	public int width; // width of the images in pixels
+	public int height; // height of the images in pixels
+	public int depth; // the number of planes
+	public double threshold1; // the threshold for image 1
+	public double threshold2; // the threshold for image 2
+	public double mean1; // mean pixel intensity for the image 1 ROI
+	public double mean2; // mean pixel intensity for the image 2 ROI
+	public double max1; // max intensity in image 1 ROI
+	public double max2; // max intensity in image 2 ROI
+	public long count; // the number of pixels in the ROI (the number of nMDPs)
+	public long positive; // the number of positive nMDPs
+	public double Icorr; // index of correlation (fraction of positive nMDPs)
+	public ImageStack colormap; // the colormap in the requested format (null if not requested)
+	public NMDPSummary summary; // summary of the nMDP distribution (null if not requested)
+	public SignificanceTest significance; // significance of Icorr (null if not requested)
+	public ColocalizationRegions regions; // Icorr per slice, frame and ROI (null if not requested)
+	public IcorrEstimate estimate; // the estimate of Icorr and its confidence interval (null unless sampled)
+	public ColocalizationMetrics metrics; // time, pixels and peak heap of the phases of the calculation
+	NMDPBuffer nMDPs; // nMDPs kept in memory (null if not requested or streamed)
+
+	/**
+	 * Returns nMDPs of the ROI pixels in pixel order, or null if they were not
+	 * kept
+	 */
+	public double[] nMDPs() {
+		return nMDPs != null ? nMDPs.toArray() : null;
+	}
+}
\ No newline at end of file
@@ -5,17 +5,24 @@
 
 package Colocalization_Colormap_;
 
+import java.awt.Checkbox;
+import java.awt.Choice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Label;
+import java.awt.TextField;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import ij.*;
 import ij.gui.*;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
+import ij.plugin.frame.RoiManager;
 import ij.text.TextWindow;
 
 public class Colocalization_ implements PlugIn {
@@ -27,12 +34,54 @@ public class Colocalization_ implements PlugIn {
 	String title1 = ""; // the name of the 1st input image or stack of images (image 1)
 	String title2 = ""; // the name of the 2nd input image or stack of images (image 2)
 	boolean nMDPstat = false; // 'Display Icorr' checkbox status
+	String nMDPformat = NMDPFile.FORMATS[0]; // 'nMDP format' choice (text or binary)
+	boolean summarystat = false; // 'nMDP summary' checkbox status
+	boolean regionstat = false; // 'Icorr per slice, frame and ROI' checkbox status
+	String significance = SignificanceTest.METHODS[0]; // 'Significance test' choice (none, block scrambling or bootstrap)
+	int resamples = 200; // the number of resamples of the significance test
+	int block = 8; // edge of the blocks of the significance test in pixels
+	boolean samplingstat = false; // 'Estimate Icorr by sampling' checkbox status
+	double precision = 0.01; // the half-width of the confidence interval of the Icorr estimate
+	boolean streamstat = false; // colormap planes are saved as they are calculated (batchprocessor mode)
 	boolean thresholdstat = true; // 'Autothreshold' checkbox status
+	boolean colormapstat = true; // 'Display colormap' checkbox status
+	boolean previewstat = false; // 'Live preview' checkbox status
+	String colormapformat = ColocalizationEngine.COLORMAPS[0]; // 'Colormap format' choice (RGB, indexed or nMDPs)
 	double thresholdvalue1; // default manual threshold for channel 1
 	double thresholdvalue2; // default manual threshold for channel 2
 	boolean batchprocessor = false; // Determines if batchproceesor mode is on. By default this value is false
 	String outputpath; // the directory to save results in
 	String outputfile; // the name of the file that stores results
+	int threads = Prefs.getThreads(); // the number of threads used to process image stacks
+	BatchResults batchresults; // ordered lists of a parallel batch run (lists are appended directly if null)
+	int batchindex; // input index of the pair in the batch run
+	boolean deferredsave = false; // results are saved by a later save() call instead of colocalize()
+	double Icorr = Double.NaN; // Icorr of the last pair processed in batchprocessor mode (NaN if it failed)
+	NMDPSummary summary; // nMDP summary of the last pair processed in batchprocessor mode (if requested)
+	ColocalizationRegions regions; // Icorr per slice and frame of the last pair processed in batchprocessor mode (if requested)
+	SignificanceTest significancetest; // significance of Icorr of the last pair processed in batchprocessor mode (if requested)
+	IcorrEstimate estimate; // the Icorr estimate of the last pair processed in batchprocessor mode (if sampled)
+	ImageStack colocalizationstack; // colormap of the last pair processed in batchprocessor mode (if requested)
+	ColocalizationMetrics metrics; // metrics of the last pair processed in batchprocessor mode (may be set before)
+	ColocalizationEngine.Progress progress = IMAGEJ; // receives progress of the calculation
+
+	/**
+	 * Shows progress in the ImageJ status bar, progress bar and log window
+	 */
+	static final ColocalizationEngine.Progress IMAGEJ = new ColocalizationEngine.Progress() {
+		public void status(String message) {
+			IJ.showStatus(message);
+			IJ.log(message);
+		}
+
+		public void log(String message) {
+			IJ.log(message);
+		}
+
+		public void progress(long done, long total) {
+			IJ.showProgress((double) done / total);
+		}
+	};
 
 	public void run(String arg) {
 		/**
@@ -45,9 +94,12 @@ public class Colocalization_ implements PlugIn {
 		}
 		IJ.register(Colocalization_.class);
 		String[] titles = new String[wList.length];
+		int maximum = 255; // the maximum of the threshold sliders
 		for (int i = 0; i < wList.length; i++) {
 			ImagePlus imp = WindowManager.getImage(wList[i]);
 			titles[i] = imp.getTitle(); // list of the names of open images
+			if (imp.getBitDepth() == 16)
+				maximum = 65535;
 		}
 		/**
 		 * Generates and opens the dialog window with the image selection options
@@ -66,19 +118,51 @@ public class Colocalization_ implements PlugIn {
 		dialog.addChoice("Channel 2:", titles, defaultItem2); // channel 2 default selection
 
 		dialog.addCheckbox("Save nMDPs", nMDPstat); // "Display or save nMDPs" checkbox
+		dialog.addChoice("nMDP format:", NMDPFile.FORMATS, nMDPformat); // text or binary nMDP file
+		dialog.addCheckbox("nMDP summary", summarystat); // "nMDP summary" checkbox
+		dialog.addCheckbox("Icorr per slice, frame and ROI", regionstat); // "Icorr per slice, frame and ROI" checkbox
 		dialog.addCheckbox("Autothreshold", thresholdstat); // "Autothreshold" checkbox
-		dialog.addNumericField("Threshold 1:", 0, 1); // field with initial manual threshold value for channel 1
-		dialog.addNumericField("Threshold 2:", 0, 1); // field with initial manual threshold value for channel 1
+		dialog.addCheckbox("Display colormap", colormapstat); // "Display colormap" checkbox
+		dialog.addCheckbox("Live preview", previewstat); // "Live preview" checkbox (colormap and Icorr of the current slice)
+		dialog.addCheckbox("Estimate Icorr by sampling", samplingstat); // "Estimate Icorr by sampling" checkbox
+		dialog.addChoice("Colormap format:", ColocalizationEngine.COLORMAPS, colormapformat); // RGB, indexed or nMDPs
+		dialog.addChoice("Significance test:", SignificanceTest.METHODS, significance); // none, block scrambling or bootstrap
+		dialog.addSlider("Threshold 1:", 0, maximum, 0); // slider with initial manual threshold value for channel 1
+		dialog.addSlider("Threshold 2:", 0, maximum, 0); // slider with initial manual threshold value for channel 2
+		dialog.addNumericField("Threads:", threads, 0); // field with the number of threads used to process stacks
+		dialog.addNumericField("Resamples:", resamples, 0); // field with the number of resamples of the significance test
+		dialog.addNumericField("Block size:", block, 0); // field with the edge of the blocks of the significance test
+		dialog.addNumericField("Precision:", precision, 3); // field with the half-width of the 95% interval of the estimate
+		dialog.addMessage("Preview: -"); // Icorr of the current slice while previewing
+		ThresholdPreview preview = null;
+		if (dialog.getMessage() instanceof Label && GraphicsEnvironment.isHeadless() == false) {
+			preview = new ThresholdPreview(wList, (Choice) dialog.getChoices().get(0),
+					(Choice) dialog.getChoices().get(1), (TextField) dialog.getNumericFields().get(0),
+					(TextField) dialog.getNumericFields().get(1), (Checkbox) dialog.getCheckboxes().get(3),
+					(Checkbox) dialog.getCheckboxes().get(5), (Label) dialog.getMessage());
+			dialog.addDialogListener(preview); // Recalculates the preview when thresholds or channels change
+		}
 		dialog.showDialog(); // Displays dialog window
+		if (preview != null)
+			preview.close(); // Only OK runs the whole stack
 		if (dialog.wasCanceled())
 			return;
 		/**
 		 * Gets values entered in the dialog window
 		 */
 		nMDPstat = dialog.getNextBoolean(); // "Display or save nMDPs" true\false
+		summarystat = dialog.getNextBoolean(); // "nMDP summary" true\false
+		regionstat = dialog.getNextBoolean(); // "Icorr per slice, frame and ROI" true\false
 		thresholdstat = dialog.getNextBoolean(); // "Autohreshold" true\false
+		colormapstat = dialog.getNextBoolean(); // "Display colormap" true\false
+		previewstat = dialog.getNextBoolean(); // "Live preview" true\false
+		samplingstat = dialog.getNextBoolean(); // "Estimate Icorr by sampling" true\false
 		thresholdvalue1 = dialog.getNextNumber(); // manual threshold value for channel 1
 		thresholdvalue2 = dialog.getNextNumber(); // manual threshold value for channel 2
+		threads = Math.max(1, (int) dialog.getNextNumber()); // the number of threads
+		resamples = (int) dialog.getNextNumber(); // the number of resamples
+		block = (int) dialog.getNextNumber(); // the edge of the blocks in pixels
+		precision = dialog.getNextNumber(); // the precision of the Icorr estimate
 		/**
 		 * Gets images selected in the dialog window
 		 */
@@ -86,6 +170,9 @@ public class Colocalization_ implements PlugIn {
 		title1 = titles[index1];
 		int index2 = dialog.getNextChoiceIndex();
 		title2 = titles[index2];
+		nMDPformat = dialog.getNextChoice(); // format of the nMDP file
+		colormapformat = dialog.getNextChoice(); // format of the colormap
+		significance = dialog.getNextChoice(); // the significance test
 		ImagePlus image1 = WindowManager.getImage(wList[index1]); // image 1
 		ImagePlus image2 = WindowManager.getImage(wList[index2]); // image 2
 		/**
@@ -93,24 +180,6 @@ public class Colocalization_ implements PlugIn {
 		 */
 		IJ.log("Channel1: " + title1);
 		IJ.log("Channel2: " + title2);
-		/**
-		 * Checks whether selected images are in 8-bit or in 16-bit grayscale
-		 */
-		if (image1.getBitDepth() > 16) {
-			// Displays exception messages if at least one of the images is not in 8-bit or
-			// in 16-bit grayscale
-			IJ.showMessage("Convert " + title1 + " image to 8-bit or 16-bit grayscale.");
-			return;
-		}
-		if (image2.getBitDepth() > 16) {
-			IJ.showMessage("Convert " + title2 + " image to 8-bit or 16-bit grayscale.");
-			return;
-		}
-		if (image1.getBitDepth() != image2.getBitDepth()) {
-			// Displays exception message if input images have different bit depths
-			IJ.showMessage("Images must have the same bit depth.");
-			return;
-		}
 		/**
 		 * Starts colocalization process
 		 */
@@ -123,230 +192,75 @@ public class Colocalization_ implements PlugIn {
 	}
 
 	/**
-	 * Initiates variables. They will be used to calculate and display colormap,
-	 * threshold, maximum and average intensities, nMDP and Icorr values
+	 * Colocalizes two images with ColocalizationEngine and displays the colormap,
+	 * nMDPs and Icorr (or saves them in batchprocessor mode)
 	 */
 	final public void colocalize(ImagePlus image1, ImagePlus image2, boolean thresholdstat, double thresholdvalue1,
 			double thresholdvalue2, boolean batchprocessor, String outputpath, String outputfile) throws IOException {
-		IJ.showStatus("Initialization..."); // Updates process status
-		IJ.log("Initialization..."); // Updates log
-		// Generates 'jet' map based on RGB standard ( red channel -colormapr,
-		// green channel -colormapg, blue channel -colormapb)
-		int[] colormapr = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 8, 12, 16,
-				20, 24, 28, 32, 36, 40, 44, 48, 52, 56, 60, 64, 68, 72, 76, 80, 84, 88, 92, 96, 100, 104, 108, 112, 116,
-				120, 124, 128, 131, 135, 139, 143, 147, 151, 155, 159, 163, 167, 171, 175, 179, 183, 187, 191, 195, 199,
-				203, 207, 211, 215, 219, 223, 227, 231, 235, 239, 243, 247, 251, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 251, 247, 243, 239, 235, 231,
-				227, 223, 219, 215, 211, 207, 203, 199, 195, 191, 187, 183, 179, 175, 171, 167, 163, 159, 155, 151, 147,
-				143, 139, 135, 131, 128 };
-		int[] colormapg = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 4, 8, 12, 16, 20, 24, 28, 32, 36, 40, 44, 48, 52, 56, 60, 64, 68, 72, 76, 80, 84, 88, 92, 96, 100,
-				104, 108, 112, 116, 120, 124, 128, 131, 135, 139, 143, 147, 151, 155, 159, 163, 167, 171, 175, 179, 183,
-				187, 191, 195, 199, 203, 207, 211, 215, 219, 223, 227, 231, 235, 239, 243, 247, 251, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 251, 247,
-				243, 239, 235, 231, 227, 223, 219, 215, 211, 207, 203, 199, 195, 191, 187, 183, 179, 175, 171, 167, 163,
-				159, 155, 151, 147, 143, 139, 135, 131, 128, 124, 120, 116, 112, 108, 104, 100, 96, 92, 88, 84, 80, 76,
-				72, 68, 64, 60, 56, 52, 48, 44, 40, 36, 32, 28, 24, 20, 16, 12, 8, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-		int[] colormapb = { 131, 135, 139, 143, 147, 151, 155, 159, 163, 167, 171, 175, 179, 183, 187, 191, 195, 199,
-				203, 207, 211, 215, 219, 223, 227, 231, 235, 239, 243, 247, 251, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
-				255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 251, 247, 243, 239, 235, 231,
-				227, 223, 219, 215, 211, 207, 203, 199, 195, 191, 187, 183, 179, 175, 171, 167, 163, 159, 155, 151, 147,
-				143, 139, 135, 131, 128, 124, 120, 116, 112, 108, 104, 100, 96, 92, 88, 84, 80, 76, 72, 68, 64, 60, 56,
-				52, 48, 44, 40, 36, 32, 28, 24, 20, 16, 12, 8, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-				0, 0, 0, 0, 0, 0, 0, 0, 0 };
-		double nMDP; // nMDP value
-		int nMDP8bit; // nMDP value mapped to 8-bit range of 256 indices
-		double nMDPpos = 0; // the number of positive nMDPs
-		double nMDPall = 0; // the number of all nMDPs
-		double max1 = 0; // max intensity in image 1
-		double max2 = 0; // max intensity in image 2
-		double meansum1 = 0; // sum of intensities in image 1
-		double meansum2 = 0; // sum of intensities in image 2
-		double count1 = 0; // the number of above-threshold pixels in image 1
-		double count2 = 0; // the number of above-threshold pixels in image 2
-		double threshold1 = 0; // the threshold for image 1
-		double threshold2 = 0; // the threshold for image 2
-		/**
-		 * Gets information about the size of input images (the number of pixels in a
-		 * row and column, the number of planes)
-		 */
-		ImageStack stack1 = image1.getImageStack(); // Gets input stack for image 1
-		int width1 = stack1.getWidth(); // width of image 1 in pixels
-		int height1 = stack1.getHeight(); // height of image 2 in pixels
-		int endFrame1 = stack1.getSize(); // the number of planes in image 1
-		ImageStack stack2 = image2.getImageStack(); // Gets input stack for image 2
-		int width2 = stack2.getWidth(); // width of image 2 in pixels
-		int height2 = stack2.getHeight(); // height of image 2 in pixels
-		int endFrame2 = stack2.getSize(); // the number of planes in image 2
-		/**
-		 * Checks whether input images are of the same size
-		 */
-		if (width1 != width2 || height1 != height2 || endFrame1 != endFrame2) {
-			// Displays exception window if images are not of the same size
-			IJ.showMessage("The source images or image stacks must have the same size");
-			return;
-		}
-		/**
-		 * Gets manual threshold values entered in the dialog window.
-		 */
-		if (thresholdstat == false) { // Checks if autothreshold checkbox is unselected
-			// Checks if manual threshold values for input images were specified in the
-			// dialogbox
-			if (Double.isNaN(thresholdvalue1) == true || Double.isNaN(thresholdvalue2) == true) {
-				// Displays exception window if manual threshold values were not specified
-				IJ.showMessage("The threshold value for at least one of the images has not been specified");
-				return;
-			}
-			IJ.showStatus("Calculating thresholds..."); // Updates process status
-			threshold1 = thresholdvalue1; // Gets manual threshold value for image 1
-			threshold2 = thresholdvalue2; // Gets manual threshold value for image 2
-			IJ.log("Threshold1: " + String.valueOf(threshold1)); // Updates log
-			IJ.log("Threshold2: " + String.valueOf(threshold2)); // Updates log
-		} else {
-			/**
-			 * Calculates autothreshold values.
-			 */
-			IJ.showStatus("Applying thresholds..."); // Updates process status
-			IJ.log("Applying thresholds..."); // Updates log
-			// Calculates autothreshold for image1 using default ImgeJ method (variation of
-			// IsoData algorithm)
-			IJ.setAutoThreshold(image1, "Default dark stack");
-			threshold1 = image1.getProcessor().getMinThreshold();
-			IJ.resetThreshold(image1);
-			// Calculates autothreshold for image1 using default ImgeJ method (variation of
-			// IsoData algorithm)
-			IJ.setAutoThreshold(image2, "Default dark stack");
-			threshold2 = image2.getProcessor().getMinThreshold();
-			IJ.resetThreshold(image2);
-			IJ.log("Threshold 1: " + String.valueOf(threshold1)); // Updates log
-			IJ.log("Threshold 2: " + String.valueOf(threshold2)); // Updates log
-		}
-		/**
-		 * Calculates mean pixel intensities in the ROI (pixels equal to or above
-		 * threshold) of image1 and image2
-		 */
-		IJ.showStatus("Calculating mean and max intensities..."); // Updates process status
-		IJ.log("Calculating mean and max intensities..."); // Updates process status
-		for (int i = 1; i < endFrame1 + 1; i++) {
-			IJ.showProgress(i, endFrame1); // Updates process progress bar
-			ImageProcessor grayprocessor1 = stack1.getProcessor(i); // Gets image 1 processor
-			ImageProcessor grayprocessor2 = stack2.getProcessor(i); // Gets image 2 processor
-			for (int y = 0; y < height1; y++)
-				for (int x = 0; x < width1; x++) {
-					int value1 = grayprocessor1.getPixel(x, y); // Gets the first pixel value
-					int value2 = grayprocessor2.getPixel(x, y); // Gets the second pixel value
-					if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
-						meansum1 = meansum1 + value1; // sum of all intensities for image 1 ROI
-						count1 = count1 + 1; // the number of pixels in the ROI of image 1 ROI
-						if (value1 > max1)
-							max1 = value1; // maximum intensity in the image 1 ROI
-					}
-					if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
-						meansum2 = meansum2 + value2; // sum of all intensities for image 2 ROI
-						count2 = count2 + 1; // the number of pixels in the ROI of image 2 ROI
-						if (value2 > max2)
-							max2 = value2; // maximum intensity in the image 2 ROI
-					}
-				}
-		}
-		IJ.log("Maximum 1: " + String.valueOf(max1)); // Updates log
-		IJ.log("Maximum 2: " + String.valueOf(max2)); // Updates log
-		/**
-		 * To avoid division by zero checks whether ROIs of input images contain any
-		 * data
-		 */
-		if (count1 == 0 || count2 == 0) {
-			// Displays exception message if images are empty
-			IJ.showMessage("Exception (impossible case):\n \nAt least one of your images can not be processed."
-					+ "\nProbably there are only black pixels above the threshold."
-					+ "\nCheck image and threshold parameters.");
-			return;
-		}
-		double mean1 = meansum1 / count1; // mean pixel intensity for the image1 ROI
-		double mean2 = meansum2 / count2; // mean pixel intensity for the image2 ROI
-		IJ.log("Mean 1: " + String.valueOf(mean1));
-		IJ.log("Mean 2: " + String.valueOf(mean2));
-		/**
-		 * To avoid division by zero checks whether maximum and mean pixel intensities
-		 * are different for given input images if mean=max in at least one of the
-		 * images, nMDP value will not be represented by a number
-		 */
-		if (max1 == mean1 || max2 == mean2) {
-			// Displays exception message if the above is true
-			IJ.showMessage("Exception (impossible case):\n \nAt least one of your images can not be processed."
-					+ "\nProbably all above-threshold pixels contain the same intensity value.\n \n"
-					+ "Note that mean intensity value and maximum intensity value\nmust be different "
-					+ "to calculate the mean deviation product properly.");
+		colocalize(image1, image2, null, null, thresholdstat, thresholdvalue1, thresholdvalue2, batchprocessor,
+				outputpath, outputfile);
+	}
+
+	/**
+	 * Colocalizes two TIFF files read in strips of rows and saves the results
+	 * (batchprocessor mode), so planes do not have to fit in memory
+	 */
+	final void colocalize(TiffStrips strips1, TiffStrips strips2, boolean thresholdstat, double thresholdvalue1,
+			double thresholdvalue2, String outputpath, String outputfile) throws IOException {
+		colocalize(null, null, strips1, strips2, thresholdstat, thresholdvalue1, thresholdvalue2, true, outputpath,
+				outputfile);
+	}
+
+	// Colocalizes either two images or two TIFF files read in strips
+	private void colocalize(ImagePlus image1, ImagePlus image2, TiffStrips strips1, TiffStrips strips2,
+			boolean thresholdstat, double thresholdvalue1, double thresholdvalue2, boolean batchprocessor,
+			String outputpath, String outputfile) throws IOException {
+		this.Icorr = Double.NaN; // No results until the pair has been processed
+		ColocalizationEngine engine = new ColocalizationEngine();
+		engine.autothreshold = thresholdstat;
+		engine.threshold1 = thresholdvalue1;
+		engine.threshold2 = thresholdvalue2;
+		engine.colormap = colormapstat;
+		engine.colormapformat = colormapformat;
+		engine.nMDPs = nMDPstat;
+		engine.summary = summarystat;
+		engine.regions = regionstat;
+		if (regionstat == true && batchprocessor == false && RoiManager.getInstance() != null)
+			engine.rois = RoiManager.getInstance().getRoisAsArray(); // ROIs of the ROI Manager
+		engine.significance = significance;
+		engine.resamples = resamples;
+		engine.block = block;
+		engine.sampling = samplingstat;
+		engine.precision = precision;
+		engine.threads = threads;
+		engine.progress = progress;
+		final ColocalizationMetrics metrics = this.metrics != null ? this.metrics : new ColocalizationMetrics();
+		engine.metrics = metrics;
+		final boolean binary = nMDPformat.equals(NMDPFile.FORMATS[1]); // Determines if nMDPs are saved as float32
+		Closeable[] writers = null; // nMDP and colormap files written during the calculation in batchprocessor mode
+		if (batchprocessor == true)
+			writers = stream(engine, image1 != null ? image1.getWidth() : strips1.width,
+					image1 != null ? image1.getHeight() : strips1.height,
+					image1 != null ? image1.getStackSize() : strips1.depth, outputpath, outputfile);
+		ColocalizationResult result;
+		try {
+			if (image1 != null)
+				result = engine.colocalize(image1, image2);
+			else
+				result = engine.colocalize(strips1, strips2);
+		} catch (ColocalizationException e) {
+			// Displays exception message if the images can not be colocalized
+			IJ.showMessage(e.getMessage());
 			return;
+		} finally {
+			close(writers, metrics); // Completes the files with nMDPs and colormap planes
 		}
-		/**
-		 * Calculates nMDPs, the number of nMDPs, the number of positive nMDPs, Icorr,
-		 * and displays results
-		 */
-		ImageStack colocalizationstack = new ImageStack(width1, height1); // Creates an empty result stack. It will be
-																			// used later on to store colormap.
-		ArrayList<Double> resulttable = new ArrayList<Double>();
-		; // Creates empty result table. It will be used later on to store
-		// calculated nMDP values.
-		IJ.showStatus("Calculating Icor and nMDPs..."); // Updates process status.
-		IJ.log("Calculating Icor and nMDPs..."); // Updates log.
-		for (int i = 1; i < endFrame1 + 1; i++) {
-			IJ.showProgress(i, endFrame1); // Updates process progress bar.
-			ImageProcessor grayprocessor1 = stack1.getProcessor(i); // Gets image 1 processor
-			ImageProcessor grayprocessor2 = stack2.getProcessor(i); // Gets image 2 processor
-			ImageProcessor colocalizationprocessor = stack1.getProcessor(i).convertToRGB(); // Creates result image
-																							// processor
-			// Gets intensity values of corresponding pixels from the ROIs of image1 and
-			// image2
-			for (int y = 0; y < height1; y++)
-				for (int x = 0; x < width1; x++) {
-					int value1 = grayprocessor1.getPixel(x, y); // Gets the first pixel value
-					int value2 = grayprocessor2.getPixel(x, y); // Gets the second pixel value
-					if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
-						// Calculates nMDP for pairs of corresponding pixels
-						nMDP = ((value1 - mean1) * (value2 - mean2)) / ((max1 - mean1) * (max2 - mean2));
-						if (nMDP > 1)
-							nMDP = 1;
-						if (nMDP < -1)
-							nMDP = -1;
-						if (nMDP > 0) {
-							nMDPpos = nMDPpos + 1; // the number of positive nMDPs
-						}
-						/**
-						 * Creates result table and result array. Both containing calculated nMDP values
-						 */
-						// Adds nMDPs to the result table (they will be displayed if requested by the user)
-						resulttable.add(nMDP);
-						nMDPall = nMDPall + 1; // the number of nMDPs
-						// Maps nMDP values onto 8-bit RGB standard
-						nMDP8bit = (int) Math.round(((nMDP + 1) / 2) * 255);
-						/**
-						 * Applies RGB values of 'jet' colormap to the result image processor in order to
-						 * generate colormap (for pixels equal to or above the threshold)
-						 */
-						int[] rgb24bit = { colormapr[nMDP8bit], colormapg[nMDP8bit], colormapb[nMDP8bit] };
-						colocalizationprocessor.putPixel(x, y, rgb24bit);
-					} else {
-						int[] zero = { 0, 0, 0 };
-						colocalizationprocessor.putPixel(x, y, zero); // Applies zero values to the empty result image
-																		// (for pixels below the threshold);
-					}
-				}
-			colocalizationstack.addSlice("", colocalizationprocessor); // Assigns calculated colormap to the empty stack
-																		// slice by slice
-		}
-		double Icorr = nMDPpos / nMDPall; // Calculates Icorr
+		double Icorr = result.Icorr;
+		ImageStack colocalizationstack = result.colormap; // the colormap stack (if requested)
+		NMDPSummary summary = result.summary; // distribution of nMDPs (if requested)
+		SignificanceTest significancetest = result.significance; // significance of Icorr (if requested)
+		ColocalizationRegions regions = result.regions; // Icorr per slice, frame and ROI (if requested)
+		IcorrEstimate estimate = result.estimate; // the Icorr estimate (if sampled)
 		if (batchprocessor == false) {
 			/**
 			 * Displays results
@@ -370,61 +284,211 @@ public class Colocalization_ implements PlugIn {
 
 			outputfile = outputname1 + " " + outputname2; // Assembles names of input files. This will be used
 															// to create result file name
-			ImagePlus colocalizationimage = new ImagePlus(outputfile + " colocalization", colocalizationstack); // Generates
-																												// colormap
-																												// image
 			/**
 			 * Saving nMDPs
 			 */
-			if (nMDPstat == true) {
+			if (nMDPstat == true && result.nMDPs != null) {
 				IJ.log("Saving nMDPs..."); // Updates log
 				SaveDialog savewindow = new SaveDialog("Save nMDPs", outputname1 + " and " + outputname2 + " nMDPs",
-						".txt"); // Opens "Save as" dialog window
+						binary ? NMDPFile.EXTENSION : ".txt"); // Opens "Save as" dialog window
 				String savefile = savewindow.getFileName(); // Gets file name specified by the user
 				String savedirectory = savewindow.getDirectory(); // Gets directory specified by the user
-				// Saves nMDPs in the specified directory and file
-				PrintWriter printwritter = new PrintWriter(new FileOutputStream(savedirectory + savefile));
-				for (Double element : resulttable)
-					printwritter.println(element);
-				printwritter.close();
+				save(result, savedirectory + savefile, binary); // Saves nMDPs in the specified directory and file
 			}
 			IJ.showStatus("Displaying results..."); // Updates process status.
 			IJ.log("Displaying results..."); // Updates log
-			colocalizationimage.show(); // Displays colormap image
+			if (colormapstat == true && colocalizationstack != null) {
+				ImagePlus colocalizationimage = ColocalizationEngine.image(outputfile + " colocalization",
+						colocalizationstack, colormapformat); // Generates colormap image
+				colocalizationimage.show(); // Displays colormap image
+			}
 			TextWindow textwindow = new TextWindow("Index of correlation", Double.toString(Icorr), 435, 180);
+			if (summary != null) // Displays summary of the nMDP distribution
+				new TextWindow("nMDP summary " + outputfile, "Statistic\tValue",
+						String.join("\n", summary.lines()), 435, 320);
+			if (significancetest != null) // Displays significance of Icorr
+				new TextWindow("Significance of Icorr " + outputfile, "Statistic\tValue",
+						String.join("\n", significancetest.lines()), 435, 260);
+			if (regions != null) // Displays Icorr per slice, frame and ROI
+				regions.table().show("Icorr per region " + outputfile);
+			if (estimate != null) // Displays the Icorr estimate and its confidence interval
+				new TextWindow("Icorr estimate " + outputfile, "Statistic\tValue",
+						String.join("\n", estimate.lines()), 435, 320);
 		}
 		/**
 		 * Saves results in batchprocessor mode
 		 */
 		if (batchprocessor == true) {
-			IJ.log("Saving results..."); // Updates log
-			// Saves nMDPs in txt file
-			PrintWriter printwritter = new PrintWriter(
-					new FileOutputStream(outputpath + "nMDPs " + outputfile + ".txt"));	    
-			for (Double element : resulttable)
-				printwritter.println(element);
-				printwritter.close();
-			// Saves Icorr values and list of analyzed channels in txt file
-			FileWriter fileWriter = new FileWriter(outputpath + "List of Icorr values.txt", true); 
-			PrintWriter printWriter2 = new PrintWriter(fileWriter);
-			FileWriter fileWriter2 = new FileWriter(outputpath + "Names of colocalized channels.txt", true); 
-			PrintWriter printWriter3 = new PrintWriter(fileWriter2);
-		    printWriter2.println(Icorr); 
-		    printWriter2.close();    
-		    printWriter3.println(outputfile); 
-		    printWriter3.close();	
-			ImagePlus colocalizationimage = new ImagePlus(outputfile + " colocalization", colocalizationstack); // Generates
-																												// colormap
-																												// image
+			// Keeps results until they are saved
+			this.outputpath = outputpath;
+			this.outputfile = outputfile;
+			this.Icorr = Icorr;
+			this.summary = summary;
+			this.significancetest = significancetest;
+			this.regions = regions;
+			this.estimate = estimate;
+			this.colocalizationstack = colocalizationstack;
+			this.metrics = metrics;
+			if (deferredsave == false)
+				save();
+		}
+		progress.status("Colocalization colormap - the process has been finished"); // Updates process status
+		progress.log("");
+	}
+
+	/**
+	 * Sets the outputs of engine that write nMDPs (and colormap planes if stacks
+	 * are streamed) of a pair of images of the given size to its output files as
+	 * they are calculated, so they are not kept in the result. The files are
+	 * created when the first nMDPs or planes arrive and are returned as {nMDP
+	 * file, colormap file} (null until created) to be closed by close().
+	 */
+	final Closeable[] stream(ColocalizationEngine engine, final int width, final int height, final int depth,
+			String outputpath, String outputfile) {
+		final boolean binary = nMDPformat.equals(NMDPFile.FORMATS[1]); // Determines if nMDPs are saved as float32
+		final Closeable[] writers = new Closeable[2];
+		if (nMDPstat == true) {
+			// nMDPs are written to the output file as they are calculated instead of being kept
+			final String nMDPpath = outputpath + "nMDPs " + outputfile;
+			engine.output = new ColocalizationEngine.NMDPOutput() {
+				public NMDPBuffer.Sink open(ColocalizationResult result) throws IOException {
+					if (binary == true) {
+						NMDPFile nMDPfile = NMDPFile.create(nMDPpath + NMDPFile.EXTENSION, result.width,
+								result.height, result.depth, result.threshold1, result.threshold2, result.mean1,
+								result.mean2, result.max1, result.max2);
+						writers[0] = nMDPfile;
+						return nMDPfile;
+					}
+					PrintWriter printwritter = new PrintWriter(
+							new BufferedOutputStream(new FileOutputStream(nMDPpath + ".txt")));
+					writers[0] = printwritter;
+					return NMDPBuffer.text(printwritter);
+				}
+			};
+		}
+		if (colormapstat == true && streamstat == true) {
+			// Colormap planes (or strips of them) are appended to the output file as they are calculated
+			final String colormappath = outputpath + "Colormap " + outputfile + ".tif";
+			final int type = colormapformat.equals(ColocalizationEngine.COLORMAPS[0]) ? FileInfo.RGB
+					: colormapformat.equals(ColocalizationEngine.COLORMAPS[1]) ? FileInfo.GRAY8 : FileInfo.GRAY32_FLOAT;
+			final int[] lut = ColocalizationEngine.lut(colormapformat);
+			engine.colormapoutput = new ColocalizationEngine.ColormapOutput() {
+				public void write(Object pixels) throws IOException {
+					if (writers[1] == null)
+						writers[1] = new TiffWriter(colormappath, width, height, depth, type, lut,
+								type == FileInfo.GRAY32_FLOAT ? -1 : 0, type == FileInfo.GRAY32_FLOAT ? 1 : 0);
+					((TiffWriter) writers[1]).write(pixels);
+				}
+			};
+		}
+		return writers;
+	}
+
+	/**
+	 * Closes the files returned by stream() (if any) and adds the time of
+	 * completing them to metrics
+	 */
+	static void close(Closeable[] writers, ColocalizationMetrics metrics) throws IOException {
+		if (writers == null)
+			return;
+		if (writers[0] != null) {
+			long start = System.nanoTime();
+			writers[0].close();
+			metrics.add(ColocalizationMetrics.NMDP_WRITE, System.nanoTime() - start, 0);
+		}
+		if (writers[1] != null) {
+			long start = System.nanoTime();
+			writers[1].close();
+			metrics.add(ColocalizationMetrics.COLORMAP_WRITE, System.nanoTime() - start, 0);
+		}
+	}
+
+	/**
+	 * Saves nMDPs kept in a result in a text or binary nMDP file
+	 */
+	static void save(ColocalizationResult result, String path, boolean binary) throws IOException {
+		if (binary == true) {
+			NMDPFile nMDPfile = NMDPFile.create(path, result.width, result.height, result.depth, result.threshold1,
+					result.threshold2, result.mean1, result.mean2, result.max1, result.max2);
+			result.nMDPs.write(nMDPfile);
+			nMDPfile.close();
+		} else {
+			PrintWriter printwritter = new PrintWriter(new BufferedOutputStream(new FileOutputStream(path)));
+			result.nMDPs.write(NMDPBuffer.text(printwritter));
+			printwritter.close();
+		}
+	}
+
+	/**
+	 * Saves results of the last colocalize() call in batchprocessor mode (nMDP
+	 * summary, Icorr, colormap and metrics) and releases them. Called by
+	 * colocalize() unless saving is deferred to the write stage of the batch
+	 * processor.
+	 */
+	void save() throws IOException {
+		if (Double.isNaN(Icorr) == true)
+			return; // The pair could not be processed
+		progress.log("Saving results..."); // Updates log
+		metrics.start(ColocalizationMetrics.SAVE);
+		// Saves summary of the nMDP distribution in txt file
+		if (summary != null) {
+			PrintWriter printwritter = new PrintWriter(new BufferedOutputStream(
+					new FileOutputStream(outputpath + "nMDP summary " + outputfile + ".txt")));
+			summary.write(printwritter);
+			printwritter.close();
+		}
+		// Saves significance of Icorr and Icorr of the resamples in txt file
+		if (significancetest != null) {
+			PrintWriter printwritter = new PrintWriter(new BufferedOutputStream(
+					new FileOutputStream(outputpath + "Significance " + outputfile + ".txt")));
+			significancetest.write(printwritter);
+			printwritter.close();
+		}
+		// Saves the Icorr estimate and its confidence interval in txt file
+		if (estimate != null) {
+			PrintWriter printwritter = new PrintWriter(new BufferedOutputStream(
+					new FileOutputStream(outputpath + "Icorr estimate " + outputfile + ".txt")));
+			estimate.write(printwritter);
+			printwritter.close();
+		}
+		// Saves Icorr per slice and frame in csv file
+		if (regions != null)
+			regions.table().save(outputpath + "Icorr per region " + outputfile + ".csv");
+		if (colormapstat == true && colocalizationstack != null) { // Streamed colormaps are saved already
+			ImagePlus colocalizationimage = ColocalizationEngine.image(outputfile + " colocalization",
+					colocalizationstack, colormapformat); // Generates colormap image
 			// Saves colormap in a tiff file
 			FileSaver savecolormap = new FileSaver(colocalizationimage);
-			if (endFrame1 == 1)
+			if (colocalizationstack.getSize() == 1)
 				savecolormap.saveAsTiff(outputpath + "Colormap " + outputfile + ".tif");
 			else
 				savecolormap.saveAsTiffStack(outputpath + "Colormap " + outputfile + ".tif");
 		}
-		IJ.showStatus("Colocalization colormap - the process has been finished"); // Updates process status
-		IJ.log("The process has been finished"); // Updates log
-		IJ.log("");
+		long saved = 0; // the number of colormap pixels saved
+		if (colocalizationstack != null)
+			saved = (long) colocalizationstack.getWidth() * colocalizationstack.getHeight() * colocalizationstack.getSize();
+		metrics.stop(saved);
+		if (metrics.line(ColocalizationMetrics.SAVE) != null)
+			progress.log(metrics.line(ColocalizationMetrics.SAVE)); // Updates log with the time of saving
+		// Saves Icorr values and list of analyzed channels in txt file
+		if (batchresults != null)
+			batchresults.add(batchindex, Icorr, outputfile, metrics); // Written in input order by the batch processor
+		else {
+			FileWriter fileWriter = new FileWriter(outputpath + BatchResults.ICORR, true);
+			PrintWriter printWriter2 = new PrintWriter(fileWriter);
+			FileWriter fileWriter2 = new FileWriter(outputpath + BatchResults.NAMES, true);
+			PrintWriter printWriter3 = new PrintWriter(fileWriter2);
+			printWriter2.println(Icorr);
+			printWriter2.close();
+			printWriter3.println(outputfile);
+			printWriter3.close();
+			BatchResults.append(outputpath, outputfile, metrics);
+		}
+		summary = null;
+		significancetest = null;
+		regions = null;
+		estimate = null;
+		colocalizationstack = null;
+		metrics = null;
 	}
 }
\ No newline at end of file
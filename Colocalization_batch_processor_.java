@@ -5,11 +5,24 @@
 
 package Colocalization_Colormap_;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import ij.*;
 import ij.gui.*;
-import ij.measure.ResultsTable;
+import ij.io.FileInfo;
+import ij.io.Opener;
 import ij.plugin.PlugIn;
 
 public class Colocalization_batch_processor_ implements PlugIn {
@@ -18,116 +31,854 @@ public class Colocalization_batch_processor_ implements PlugIn {
 	// selection options, threshold settings, and to store nMDP values
 	String outputname1;
 	String outputname2;
+	boolean thresholdstat = true; // 'Autothreshold' checkbox status
+	double thresholdvalue1 = Double.NaN; // Manual threshold for channel 1
+	double thresholdvalue2 = Double.NaN; // Manual threshold for channel 2
+	boolean nMDPstat = true; // 'Save nMDPs' checkbox status
+	boolean colormapstat = true; // 'Save colormaps' checkbox status
+	String colormapformat = ColocalizationEngine.COLORMAPS[0]; // 'Colormap format' choice (RGB, indexed or nMDPs)
+	String nMDPformat = NMDPFile.FORMATS[0]; // 'nMDP format' choice (text or binary)
+	boolean summarystat = false; // 'Save nMDP summaries' checkbox status
+	boolean regionstat = false; // 'Save Icorr per slice and frame' checkbox status
+	String significance = SignificanceTest.METHODS[0]; // 'Significance test' choice (none, block scrambling or bootstrap)
+	int resamples = 200; // the number of resamples of the significance test
+	int block = 8; // edge of the blocks of the significance test in pixels
+	boolean samplingstat = false; // 'Estimate Icorr by sampling' checkbox status
+	double precision = 0.01; // the half-width of the confidence interval of Icorr estimates
+	boolean streamstat = false; // 'Stream stacks' checkbox status (planes are read and saved one at a time)
+	boolean resumestat = true; // 'Resume previous run' checkbox status (pairs in the manifest are skipped)
+	String node; // the name of this node if several nodes share the output folder (null if it is alone)
+	long lease = 600000; // the time after which locks of a node that is gone expire in milliseconds
+	int threads = Prefs.getThreads(); // The number of threads used to process image stacks
+	int pairs = 1; // the number of pairs processed at the same time
+	double[] thresholds; // manual thresholds of the channels (all pairs of channels)
+	ColocalizationEngine.Progress progress = Colocalization_.IMAGEJ; // receives progress of the batch and its pairs
+	static final double MEMORY = 0.75; // fraction of the free heap that parallel pairs may use
+	static final long OVERHEAD = 64L << 20; // working buffers of a pair (histograms, nMDP chunks, file buffers)
+	static final int QUEUE = 2; // the number of pairs that may wait between two stages of the pipeline
 
 	public void run(String arg) {
-
-		boolean thresholdstat = true; // 'Autothreshold' checkbox status
-		double thresholdvalue1; // Manual threshold for channel 1
-		double thresholdvalue2; // Manual threshold for channel 2
-		boolean nMDPstat = false; // Determines if NMDPs are to be saved in a file specified by the user. By default this value is false
-		boolean batchprocessor = true; // Determines if batchproceesor mode is on.
-		ResultsTable resulttable = new ResultsTable(); // Creates empty result table. It will be used later on to store
 		/**
 		 * Asks user to determine the input folders and the output folder
 		 */		
 		String inputpath1 = IJ.getDirectory("Choose input directory 1");
 		if (inputpath1 == null)
 			return;
-		File folder1 = new File(inputpath1);
-		File[] listOfFiles1 = folder1.listFiles();
 		String inputpath2 = IJ.getDirectory("Choose input directory 2");
 		if (inputpath2 == null)
 			return;
-		File folder2 = new File(inputpath2);
-		File[] listOfFiles2 = folder2.listFiles();
 		String outputpath = IJ.getDirectory("Choose output directory");
 		if (outputpath == null)
 			return;
-		// Clears pre-existing output folder data
-		File folder3 = new File(outputpath);
-		File[] list = folder3.listFiles();
-        if (list != null) {
-            for (int i = 0; i < list.length; i++) {
-                 File tmpF = list[i];
-                 tmpF.delete();
-           }
-       };
-		// Checks whether input folders contain pairs of corresponding images
-		if (listOfFiles1.length != listOfFiles2.length) {
-			// Displays exception window if the number of files id different
-			IJ.showMessage("Different number of elements in the input folders");
-			return;
-		}
 		// Generates and opens the dialog window with the threshold options
 		GenericDialog dialog = new GenericDialog("Colocalization Colormap", IJ.getInstance());
 		dialog.addCheckbox("Autothreshold", thresholdstat); // "Autothreshold" checkbox
+		dialog.addCheckbox("Save nMDPs", nMDPstat); // "Save nMDPs" checkbox
+		dialog.addChoice("nMDP format:", NMDPFile.FORMATS, nMDPformat); // Text or binary nMDP files
+		dialog.addCheckbox("Save colormaps", colormapstat); // "Save colormaps" checkbox
+		dialog.addChoice("Colormap format:", ColocalizationEngine.COLORMAPS, colormapformat); // RGB, indexed or nMDPs
+		dialog.addCheckbox("Save nMDP summaries", summarystat); // "Save nMDP summaries" checkbox
+		dialog.addCheckbox("Save Icorr per slice and frame", regionstat); // "Save Icorr per slice and frame" checkbox
+		dialog.addCheckbox("Estimate Icorr by sampling", samplingstat); // "Estimate Icorr by sampling" checkbox
+		dialog.addChoice("Significance test:", SignificanceTest.METHODS, significance); // None, block scrambling or bootstrap
+		dialog.addCheckbox("Stream stacks", streamstat); // "Stream stacks" checkbox
+		dialog.addCheckbox("Resume previous run", resumestat); // "Resume previous run" checkbox
 		dialog.addNumericField("Threshold 1:", 0, 1); // Field with initial manual threshold value for channel 1
 		dialog.addNumericField("Threshold 2:", 0, 1); // Field with initial manual threshold value for channel 1
+		dialog.addNumericField("Threads:", threads, 0); // Field with the number of threads used to process stacks
+		dialog.addNumericField("Parallel pairs:", pairs, 0); // Field with the number of pairs processed at the same time
+		dialog.addNumericField("Resamples:", resamples, 0); // Field with the number of resamples of the significance test
+		dialog.addNumericField("Block size:", block, 0); // Field with the edge of the blocks of the significance test
+		dialog.addNumericField("Precision:", precision, 3); // Field with the half-width of the 95% interval of estimates
 		dialog.showDialog(); // Displays dialog window
 		if (dialog.wasCanceled())
 			return;
-		/**
-		 * Updates log
-		 */	
-		IJ.log("Folders has been selected");
-		IJ.log("Input1: " + inputpath1);
-		IJ.log("Input2: " + inputpath2);
-		IJ.log("Output: " + outputpath);
 		// Gets values entered in the dialog window
 		thresholdstat = dialog.getNextBoolean(); // Autohreshold true\false
+		nMDPstat = dialog.getNextBoolean(); // Save nMDPs true\false
+		colormapstat = dialog.getNextBoolean(); // Save colormaps true\false
+		summarystat = dialog.getNextBoolean(); // Save nMDP summaries true\false
+		regionstat = dialog.getNextBoolean(); // Save Icorr per slice and frame true\false
+		samplingstat = dialog.getNextBoolean(); // Estimate Icorr by sampling true\false
+		streamstat = dialog.getNextBoolean(); // Stream stacks true\false
+		resumestat = dialog.getNextBoolean(); // Resume previous run true\false
+		nMDPformat = dialog.getNextChoice(); // Format of nMDP files
+		colormapformat = dialog.getNextChoice(); // Format of colormaps
+		significance = dialog.getNextChoice(); // The significance test
 		thresholdvalue1 = dialog.getNextNumber(); // Manual threshold value for channel 1
 		thresholdvalue2 = dialog.getNextNumber(); // Manual threshold value for channel 2
+		threads = Math.max(1, (int) dialog.getNextNumber()); // The number of threads
+		pairs = Math.max(1, (int) dialog.getNextNumber()); // The number of parallel pairs
+		resamples = (int) dialog.getNextNumber(); // The number of resamples
+		block = (int) dialog.getNextNumber(); // The edge of the blocks in pixels
+		precision = dialog.getNextNumber(); // The precision of Icorr estimates
+		if (resumestat == false) {
+			// Clears pre-existing output folder data
+			File folder3 = new File(outputpath);
+			File[] list = folder3.listFiles();
+			if (list != null) {
+				for (int i = 0; i < list.length; i++) {
+					File tmpF = list[i];
+					tmpF.delete();
+				}
+			}
+		}
+		try {
+			process(inputpath1, inputpath2, outputpath);
+		} catch (ColocalizationException e) {
+			// Displays exception window if the folders can not be processed
+			IJ.showMessage(e.getMessage());
+		}
+	}
+
+	/**
+	 * Colocalizes corresponding images of two input folders and saves results in
+	 * the output folder (folder paths end with a separator)
+	 */
+	void process(final String inputpath1, final String inputpath2, final String outputpath)
+			throws ColocalizationException {
+		final boolean batchprocessor = true; // Determines if batchproceesor mode is on.
+		File[] listOfFiles1 = sort(new File(inputpath1).listFiles());
+		File[] listOfFiles2 = sort(new File(inputpath2).listFiles());
+		if (listOfFiles1 == null || listOfFiles2 == null)
+			throw new ColocalizationException("Input folders can not be read");
+		// Checks whether input folders contain pairs of corresponding images
+		if (listOfFiles1.length != listOfFiles2.length)
+			throw new ColocalizationException("Different number of elements in the input folders");
 		if (thresholdstat == false) { // Checks if autothreshold checkbox is unselected
 			// Checks if manual threshold values for input images were specified in the
 			// dialogbox
-			if (Double.isNaN(thresholdvalue1) == true || Double.isNaN(thresholdvalue2) == true) {
-				// Displays exception window if manual threshold values were not specified
-				IJ.showMessage("The threshold value for at least one of the data sets has not been specified");
-				return;
-			}
+			if (Double.isNaN(thresholdvalue1) == true || Double.isNaN(thresholdvalue2) == true)
+				throw new ColocalizationException(
+						"The threshold value for at least one of the data sets has not been specified");
 		}
-		IJ.log("Autothreshold: " + String.valueOf(thresholdstat)); // Updates log
-		IJ.log("");
+		/**
+		 * Updates log
+		 */	
+		progress.log("Folders has been selected");
+		progress.log("Input1: " + inputpath1);
+		progress.log("Input2: " + inputpath2);
+		progress.log("Output: " + outputpath);
+		progress.log("Autothreshold: " + String.valueOf(thresholdstat)); // Updates log
+		progress.log("");
+		// Checks the correct structure of input folders (single folders containing files only)
 		for (int i = 0; i < listOfFiles1.length; i++) {
-			// Checks the correct structure of input folders (single folders containing files only)
-			if (listOfFiles1[i].isDirectory() == true || listOfFiles2[i].isDirectory() == true) {
-				// Displays exception window if subfolders are detected
-				IJ.showMessage("Subfolder within inputfolders are not allowed");
-				return;
+			if (listOfFiles1[i].isDirectory() == true || listOfFiles2[i].isDirectory() == true)
+				throw new ColocalizationException("Subfolder within inputfolders are not allowed");
+		}
+		/**
+		 * Pairs go through a pipeline of three stages: a decoder thread loads the next
+		 * pairs, 'Parallel pairs' workers colocalize them and a writer thread saves
+		 * the results of the previous pairs, so reading, computing and writing
+		 * overlap. At most QUEUE pairs wait between two stages. Each pair also
+		 * reserves its estimated footprint (in MB) from the free heap from loading
+		 * until it is saved. A pair larger than the whole budget runs alone.
+		 */
+		pairs = Math.max(1, Math.min(pairs, listOfFiles1.length));
+		final int budget = (int) Math.max(1,
+				Math.min(Integer.MAX_VALUE, (long) ((IJ.maxMemory() - IJ.currentMemory()) * MEMORY) >> 20));
+		final Semaphore memory = new Semaphore(budget, true); // free memory budget in MB
+		// Streamed pairs keep only the planes of the bands in flight and a plane being read, pairs read in
+		// strips only the strips in flight
+		final int colormapbytes = colormapformat.equals(ColocalizationEngine.COLORMAPS[1]) ? 1 : 4; // bytes per colormap pixel
+		final int resident = 4 * Math.max(1, threads / pairs) + 2;
+		final boolean strips = strips(); // uncompressed TIFF files are read in strips
+		final Semaphore decoded = new Semaphore(QUEUE); // loaded pairs waiting for a worker
+		final Semaphore computed = new Semaphore(QUEUE); // processed pairs waiting for the writer
+		progress.log("Parallel pairs: " + pairs + " (memory budget " + budget + " MB)"); // Updates log
+		final BatchManifest manifest; // pairs done by previous runs (or other nodes)
+		try {
+			manifest = new BatchManifest(outputpath, settings(), node, lease);
+		} catch (IOException e) {
+			throw new ColocalizationException("The batch manifest can not be read: " + e.getMessage());
+		}
+		if (node != null)
+			progress.log("Node: " + node); // Updates log
+		// Lists of a node are kept in its folder and copied to the output folder when all pairs are done
+		final BatchResults results = new BatchResults(manifest.folder()); // Icorr and name lists in input order
+		ExecutorService decoder = Executors.newSingleThreadExecutor(); // loads images
+		ExecutorService pool = Executors.newFixedThreadPool(pairs); // colocalizes pairs
+		final ExecutorService writer = Executors.newSingleThreadExecutor(); // saves results
+		boolean[] started = new boolean[listOfFiles1.length]; // pairs processed or skipped by this node
+		int waiting = 0; // the number of pairs claimed by other nodes
+		/**
+		 * A node that is alone goes through the pairs once. Nodes that share the
+		 * output folder go through them again until no pair is claimed by another
+		 * node, so each node ends with the complete lists and pairs of nodes that
+		 * are gone are taken over.
+		 */
+		do {
+			if (waiting > 0) {
+				progress.log("Waiting for " + waiting + " pairs claimed by other nodes"); // Updates log
+				try {
+					Thread.sleep(manifest.poll());
+				} catch (InterruptedException e) {
+					manifest.close();
+					decoder.shutdownNow();
+					pool.shutdownNow();
+					writer.shutdownNow();
+					Thread.currentThread().interrupt();
+					return;
+				}
 			}
-			if (listOfFiles1[i].isFile() == true & listOfFiles2[i].isFile() == true) {
-				IJ.showProgress(i, listOfFiles1.length); // Updates process progress bar
-				ImagePlus image1 = new ImagePlus(inputpath1 + listOfFiles1[i].getName()); // Loads the first image based on input path
-				ImagePlus image2 = new ImagePlus(inputpath2 + listOfFiles2[i].getName()); // Loads the second image based on input path
-
-				int index1 = listOfFiles1[i].getName().lastIndexOf('.');
-				if (index1 == -1) {
-					outputname1 = listOfFiles1[i].getName();
-				} else {
-					outputname1 = listOfFiles1[i].getName().substring(0, index1);
+			waiting = 0;
+			ArrayList<Future<Future<Void>>> tasks = new ArrayList<Future<Future<Void>>>();
+			for (int i = 0; i < listOfFiles1.length; i++) {
+				if (started[i] == false && listOfFiles1[i].isFile() == true & listOfFiles2[i].isFile() == true) {
+					final File file1 = listOfFiles1[i];
+					final File file2 = listOfFiles2[i];
+					int index1 = file1.getName().lastIndexOf('.');
+					if (index1 == -1) {
+						outputname1 = file1.getName();
+					} else {
+						outputname1 = file1.getName().substring(0, index1);
+					}
+
+					int index2 = file2.getName().lastIndexOf('.');
+
+					if (index2 == -1) {
+						outputname2 = file2.getName();
+					} else {
+						outputname2 = file2.getName().substring(0, index2);
+					}
+					final String outputfile = outputname1 + " " + "and" + " " + outputname2;
+					final String message = "Processing files " + outputname1 + " and " + outputname2 + ". Task "
+							+ String.valueOf(i + 1) + " of " + String.valueOf(listOfFiles1.length);
+					try {
+						Object[] done = manifest.done(file1, file2, outputfile); // Icorr and name of a pair done elsewhere
+						if (done != null) {
+							progress.log("Skipping files " + outputname1 + " and " + outputname2
+									+ " (done by a previous run or another node)"); // Updates log
+							started[i] = true;
+							if (Double.isNaN((Double) done[0]) == false)
+								results.add(i, (Double) done[0], (String) done[1], null);
+							results.done(i);
+							continue;
+						}
+						decoded.acquire(); // Pairs are claimed when the decoder can take them
+						if (manifest.claim(file1, file2, outputfile) == false) { // Processed by another node
+							decoded.release();
+							waiting++;
+							continue;
+						}
+					} catch (IOException e) {
+						manifest.close();
+						decoder.shutdownNow();
+						pool.shutdownNow();
+						writer.shutdownNow();
+						throw new ColocalizationException("The batch manifest can not be read: " + e.getMessage());
+					} catch (InterruptedException e) {
+						manifest.close();
+						decoder.shutdownNow();
+						pool.shutdownNow();
+						writer.shutdownNow();
+						Thread.currentThread().interrupt();
+						return;
+					}
+					started[i] = true;
+					final String[] outputs = outputs(outputfile); // output files of the pair
+					final int permits = (int) Math.min(budget,
+							Math.max(1, footprint(file1, file2, colormapstat ? colormapbytes : 0, resident, streamstat, strips) >> 20)); // memory reserved for the pair
+					final int index = i;
+					// Settings of the pair are copied before the task is started
+					final Colocalization_ batchprocess = new Colocalization_();
+					batchprocess.threads = Math.max(1, threads / pairs); // Threads are shared by parallel pairs
+					batchprocess.nMDPstat = nMDPstat;
+					batchprocess.colormapstat = colormapstat;
+					batchprocess.colormapformat = colormapformat;
+					batchprocess.nMDPformat = nMDPformat;
+					batchprocess.summarystat = summarystat;
+					batchprocess.regionstat = regionstat;
+					batchprocess.significance = significance;
+					batchprocess.resamples = resamples;
+					batchprocess.block = block;
+					batchprocess.samplingstat = samplingstat;
+					batchprocess.precision = precision;
+					batchprocess.streamstat = streamstat;
+					batchprocess.batchresults = results;
+					batchprocess.batchindex = index;
+					batchprocess.deferredsave = true; // Results are saved by the writer
+					batchprocess.progress = progress;
+					final ColocalizationMetrics metrics = new ColocalizationMetrics(); // metrics of the pair
+					batchprocess.metrics = metrics;
+					final boolean autothreshold = thresholdstat;
+					final double manualthreshold1 = thresholdvalue1;
+					final double manualthreshold2 = thresholdvalue2;
+					// Loads the pair
+					final Future<Object[]> images = decoder.submit(new Callable<Object[]>() {
+						public Object[] call() throws Exception {
+							memory.acquire(permits);
+							try {
+								metrics.start(ColocalizationMetrics.LOAD);
+								if (strips == true) { // Uncompressed TIFF files are mapped and read in strips
+									TiffStrips strips1 = TiffStrips.open(inputpath1 + file1.getName());
+									TiffStrips strips2 = strips1 != null ? TiffStrips.open(inputpath2 + file2.getName()) : null;
+									if (strips2 != null) {
+										try {
+											check(file1.getName(), strips1.width, strips1.height);
+										} catch (ColocalizationException e) {
+											strips1.close();
+											strips2.close();
+											throw e;
+										}
+										metrics.stop(0); // Strips are read during the calculation
+										return new Object[] { strips1, strips2 };
+									}
+									if (strips1 != null)
+										strips1.close();
+								}
+								ImagePlus image1 = open(inputpath1 + file1.getName()); // Loads the first image based on input path
+								ImagePlus image2 = open(inputpath2 + file2.getName()); // Loads the second image based on input path
+								check(file1.getName(), image1.getWidth(), image1.getHeight());
+								long pixels = 0; // the number of pixels decoded (virtual stacks are read later)
+								for (ImagePlus image : new ImagePlus[] { image1, image2 })
+									if (image.getStack().isVirtual() == false)
+										pixels += (long) image.getWidth() * image.getHeight() * image.getStackSize();
+								metrics.stop(pixels);
+								return new Object[] { image1, image2 };
+							} catch (Exception e) {
+								memory.release(permits);
+								decoded.release();
+								throw e;
+							}
+						}
+					});
+					// Colocalizes the pair and passes its results to the writer
+					tasks.add(pool.submit(new Callable<Future<Void>>() {
+						public Future<Void> call() throws Exception {
+							Object[] pair;
+							try {
+								pair = images.get();
+							} catch (ExecutionException e) {
+								try {
+									results.done(index);
+								} finally {
+									manifest.add(file1, file2, Double.NaN, outputfile, outputs); // Records the pair as failed
+								}
+								throw e;
+							}
+							decoded.release();
+							boolean saving = false;
+							try {
+								progress.log(message); // Updates log
+								// Starts colocalization process
+								if (pair[0] instanceof TiffStrips)
+									batchprocess.colocalize((TiffStrips) pair[0], (TiffStrips) pair[1], autothreshold,
+											manualthreshold1, manualthreshold2, outputpath, outputfile);
+								else
+									batchprocess.colocalize((ImagePlus) pair[0], (ImagePlus) pair[1], autothreshold,
+											manualthreshold1, manualthreshold2, batchprocessor, outputpath, outputfile);
+								close(pair);
+								pair = null;
+								computed.acquire();
+								saving = true;
+							} finally {
+								close(pair);
+								if (saving == false) {
+									memory.release(permits);
+									try {
+										results.done(index);
+									} finally {
+										manifest.add(file1, file2, Double.NaN, outputfile, outputs); // Records the pair as failed
+									}
+								}
+							}
+							return writer.submit(new Callable<Void>() {
+								public Void call() throws Exception {
+									boolean saved = false;
+									try {
+										batchprocess.save();
+										saved = true;
+									} finally {
+										computed.release();
+										memory.release(permits);
+										try {
+											results.done(index); // Appends Icorr lists up to this pair if all preceding pairs are done
+										} finally { // Records the pair as done (or failed if Icorr is NaN)
+											manifest.add(file1, file2, saved ? batchprocess.Icorr : Double.NaN, outputfile,
+													outputs);
+										}
+									}
+									return null;
+								}
+							});
+						}
+					}));
+				}
+			}
+			// Waits until the pairs are saved, in input order
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					tasks.get(i).get().get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				} catch (InterruptedException e) {
+					manifest.close();
+					decoder.shutdownNow();
+					pool.shutdownNow();
+					writer.shutdownNow();
+					Thread.currentThread().interrupt();
+					return;
 				}
+				progress.progress(i + 1, tasks.size()); // Updates process progress bar
+			}
+		} while (waiting > 0);
+		manifest.close();
+		decoder.shutdown();
+		pool.shutdown();
+		writer.shutdown();
+		try {
+			for (String line : results.summary())
+				progress.log(line); // Updates log with metrics of the run
+			manifest.publish(BatchResults.ICORR, BatchResults.NAMES); // Lists of all nodes are the same
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		progress.log("Batch processing has been completed"); // Updates log
+	}
 
-				int index2 = listOfFiles2[i].getName().lastIndexOf('.');
+	/**
+	 * Colocalizes all pairs of channels of corresponding images of several input
+	 * folders (one channel per folder), or of the multi-channel images of a single
+	 * input folder, and saves results in the output folder (folder paths end with
+	 * a separator). Each channel is decoded and thresholded once and the pairs of
+	 * an image are processed in parallel. An Icorr matrix is saved for each image
+	 * and Icorr of each pair is added to the lists. Previous runs are not resumed
+	 * and the output folder is not shared between nodes.
+	 */
+	void process(String[] inputpaths, String outputpath) throws ColocalizationException {
+		File[][] listsOfFiles = new File[inputpaths.length][];
+		for (int i = 0; i < inputpaths.length; i++) {
+			listsOfFiles[i] = sort(new File(inputpaths[i]).listFiles());
+			if (listsOfFiles[i] == null)
+				throw new ColocalizationException("Input folders can not be read");
+			if (listsOfFiles[i].length != listsOfFiles[0].length)
+				throw new ColocalizationException("Different number of elements in the input folders");
+			for (File file : listsOfFiles[i])
+				if (file.isDirectory() == true)
+					throw new ColocalizationException("Subfolder within inputfolders are not allowed");
+		}
+		/**
+		 * Updates log
+		 */
+		progress.log("Folders has been selected");
+		for (int i = 0; i < inputpaths.length; i++)
+			progress.log("Input" + (i + 1) + ": " + inputpaths[i]);
+		progress.log("Output: " + outputpath);
+		progress.log("Autothreshold: " + String.valueOf(thresholdstat)); // Updates log
+		progress.log("");
+		BatchResults results = new BatchResults(outputpath); // Icorr and name lists in input order
+		int index = 0; // input index of the next pair
+		for (int k = 0; k < listsOfFiles[0].length; k++) {
+			// Loads the channels (once each)
+			ColocalizationMetrics load = new ColocalizationMetrics(); // time of loading, added to the first pair
+			load.start(ColocalizationMetrics.LOAD);
+			ImagePlus[] channels;
+			String name; // the name of the Icorr matrix
+			if (inputpaths.length == 1) {
+				ImagePlus image = new ImagePlus(listsOfFiles[0][k].getPath());
+				if (image.getWidth() == 0)
+					continue; // Not an image
+				image.setTitle(name = basename(listsOfFiles[0][k]));
+				channels = ColocalizationMatrix.channels(image);
+			} else {
+				channels = new ImagePlus[inputpaths.length];
+				name = basename(listsOfFiles[0][k]);
+				for (int i = 0; i < channels.length; i++) {
+					channels[i] = new ImagePlus(listsOfFiles[i][k].getPath());
+					if (channels[i].getWidth() == 0)
+						break; // Not an image
+					channels[i].setTitle("C" + (i + 1) + "-" + basename(listsOfFiles[i][k])); // Named like channels of an image
+				}
+				if (channels[channels.length - 1] == null || channels[channels.length - 1].getWidth() == 0)
+					continue;
+			}
+			load.stop((long) channels[0].getWidth() * channels[0].getHeight() * channels[0].getStackSize()
+					* channels.length);
+			progress.log("Processing channels of " + name + ". Task " + (k + 1) + " of " + listsOfFiles[0].length); // Updates log
+			// Colocalizes all pairs of channels
+			ColocalizationEngine engine = new ColocalizationEngine();
+			engine.autothreshold = thresholdstat;
+			engine.thresholds = thresholds;
+			engine.colormap = colormapstat;
+			engine.colormapformat = colormapformat;
+			engine.nMDPs = nMDPstat;
+			engine.summary = summarystat;
+			engine.regions = regionstat;
+			engine.significance = significance;
+			engine.resamples = resamples;
+			engine.block = block;
+			engine.sampling = samplingstat;
+			engine.precision = precision;
+			engine.threads = threads;
+			engine.progress = progress;
+			// Each pair is saved as soon as it is done; its nMDPs (and colormap planes if stacks are
+			// streamed) are written while it is calculated
+			final int first = index; // input index of the first pair of the channels
+			final int count = channels.length * (channels.length - 1) / 2; // the number of pairs
+			index += count;
+			final boolean[] done = new boolean[count]; // pairs recorded in the lists
+			final Colocalization_[] batchprocesses = new Colocalization_[count]; // results of each pair
+			final ColocalizationMetrics[] loaded = { load }; // added to the first pair saved
+			final BatchResults lists = results;
+			final int width = channels[0].getWidth();
+			final int height = channels[0].getHeight();
+			final int depth = channels[0].getStackSize();
+			ColocalizationMatrix.PairOutput output = new ColocalizationMatrix.PairOutput() {
+				public Closeable open(int pair, String outputfile, ColocalizationEngine pairengine) {
+					Colocalization_ batchprocess = new Colocalization_();
+					batchprocess.nMDPstat = nMDPstat;
+					batchprocess.nMDPformat = nMDPformat;
+					batchprocess.colormapstat = colormapstat;
+					batchprocess.colormapformat = colormapformat;
+					batchprocess.streamstat = streamstat;
+					batchprocess.progress = progress;
+					batchprocess.batchresults = lists;
+					batchprocess.batchindex = first + pair;
+					batchprocesses[pair] = batchprocess;
+					final ColocalizationMetrics metrics = new ColocalizationMetrics(); // metrics of the pair
+					pairengine.metrics = metrics;
+					final Closeable[] writers = batchprocess.stream(pairengine, width, height, depth, outputpath,
+							outputfile);
+					return new Closeable() {
+						public void close() throws IOException {
+							Colocalization_.close(writers, metrics);
+						}
+					};
+				}
 
-				if (index2 == -1) {
-					outputname2 = listOfFiles2[i].getName();
-				} else {
-					outputname2 = listOfFiles2[i].getName().substring(0, index2);
+				public void save(int pair, String outputfile, ColocalizationResult result) throws IOException {
+					try {
+						Colocalization_ batchprocess = batchprocesses[pair];
+						if (result != null && batchprocess != null) {
+							synchronized (loaded) {
+								if (loaded[0] != null)
+									result.metrics.add(loaded[0]);
+								loaded[0] = null;
+							}
+							batchprocess.outputpath = outputpath;
+							batchprocess.outputfile = outputfile;
+							batchprocess.Icorr = result.Icorr;
+							batchprocess.summary = result.summary;
+							batchprocess.significancetest = result.significance;
+							batchprocess.regions = result.regions;
+							batchprocess.estimate = result.estimate;
+							batchprocess.colocalizationstack = result.colormap; // null if streamed
+							batchprocess.metrics = result.metrics;
+							batchprocess.save();
+						}
+						batchprocesses[pair] = null; // Released when saved
+					} finally {
+						synchronized (done) {
+							done[pair] = true;
+						}
+						lists.done(first + pair);
+					}
 				}
-				String outputfile = outputname1 + " " + "and" + " " + outputname2;
-				// Starts colocalization process
-				IJ.log("Processing files " + outputname1 + " and " + outputname2 + ". Task " + String.valueOf(i + 1) 
-						+ " of " + String.valueOf(listOfFiles1.length)); // Updates log
-				 // Starts colocalization process
-				Colocalization_ batchprocess = new Colocalization_();
+			};
+			ColocalizationMatrix matrix = null;
+			try {
+				matrix = ColocalizationMatrix.colocalize(engine, channels, output);
+			} catch (ColocalizationException e) {
+				progress.log(name + ": " + e.getMessage()); // Updates log
+			} finally {
+				// Pairs that were not started are recorded without results
 				try {
-					batchprocess.colocalize(image1, image2, thresholdstat, thresholdvalue1, thresholdvalue2,
-							batchprocessor, outputpath, outputfile);
+					for (int pair = 0; pair < count; pair++)
+						synchronized (done) {
+							if (done[pair] == false) {
+								done[pair] = true;
+								results.done(first + pair);
+							}
+						}
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
+			channels = null;
+			if (matrix == null)
+				continue;
+			// Saves the Icorr matrix
+			try {
+				PrintWriter printwriter = new PrintWriter(new FileWriter(outputpath + "Icorr matrix " + name + ".txt"));
+				matrix.write(printwriter);
+				printwriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			progress.progress(k + 1, listsOfFiles[0].length); // Updates process progress bar
+		}
+		try {
+			for (String line : results.summary())
+				progress.log(line); // Updates log with metrics of the run
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		progress.log("Batch processing has been completed"); // Updates log
+	}
+
+	// Returns the name of a file without its extension
+	private static String basename(File file) {
+		int index = file.getName().lastIndexOf('.');
+		return index == -1 ? file.getName() : file.getName().substring(0, index);
+	}
+
+	/**
+	 * Sorts files of an input folder by name (null if the folder can not be
+	 * read), so that pairs and their indices do not depend on the order in which
+	 * a file system lists them
+	 */
+	private static File[] sort(File[] files) {
+		if (files != null)
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File file1, File file2) {
+					return file1.getName().compareTo(file2.getName());
+				}
+			});
+		return files;
+	}
+
+	// Returns the settings that change results of pairs (the key of the manifest)
+	private String settings() {
+		return "threshold=" + (thresholdstat ? "auto" : thresholdvalue1 + "," + thresholdvalue2) + ";nMDPs="
+				+ (nMDPstat ? nMDPformat : "none") + ";colormap=" + (colormapstat ? colormapformat : "none")
+				+ ";summary=" + summarystat + (regionstat ? ";regions" : "")
+				+ (significance.equals(SignificanceTest.METHODS[0]) ? ""
+						: ";significance=" + significance + "," + resamples + "," + block)
+				+ (samplingstat ? ";sampling=" + precision : "");
+	}
+
+	// Returns names of the output files of a pair
+	private String[] outputs(String outputfile) {
+		ArrayList<String> outputs = new ArrayList<String>();
+		if (samplingstat == true) { // Only Icorr is estimated
+			outputs.add("Icorr estimate " + outputfile + ".txt");
+			return outputs.toArray(new String[outputs.size()]);
+		}
+		if (nMDPstat == true)
+			outputs.add("nMDPs " + outputfile + (nMDPformat.equals(NMDPFile.FORMATS[1]) ? NMDPFile.EXTENSION : ".txt"));
+		if (colormapstat == true)
+			outputs.add("Colormap " + outputfile + ".tif");
+		if (summarystat == true)
+			outputs.add("nMDP summary " + outputfile + ".txt");
+		if (significance.equals(SignificanceTest.METHODS[0]) == false)
+			outputs.add("Significance " + outputfile + ".txt");
+		if (regionstat == true)
+			outputs.add("Icorr per region " + outputfile + ".csv");
+		return outputs.toArray(new String[outputs.size()]);
+	}
+
+	/**
+	 * Returns true if pairs of uncompressed TIFF files are read in strips instead
+	 * of being decoded by ImageJ: always if stacks are streamed, otherwise unless
+	 * the significance test or Icorr per region need the whole images (and their
+	 * hyperstack dimensions). Planes read in strips may be larger than any ImageJ
+	 * image, so their size is checked by check() when they are opened.
+	 */
+	boolean strips() {
+		return streamstat == true
+				|| (significance.equals(SignificanceTest.METHODS[0]) == true && regionstat == false);
+	}
+
+	/**
+	 * Throws an exception if the colormap of a pair of images of the given size
+	 * can not be saved, before any time is spent on the pair: a colormap that is
+	 * kept until it is saved has to fit in an ImageJ stack, and rows of a
+	 * streamed colormap have to fit in a TIFF strip
+	 */
+	void check(String name, long width, long height) throws ColocalizationException {
+		if (colormapstat == false || samplingstat == true)
+			return; // No colormap is saved
+		int bytes = colormapformat.equals(ColocalizationEngine.COLORMAPS[0]) ? 3
+				: colormapformat.equals(ColocalizationEngine.COLORMAPS[1]) ? 1 : 4; // bytes per pixel in the file
+		if (streamstat == false && width * height > Integer.MAX_VALUE)
+			throw new ColocalizationException(
+					"The colormap of " + name + " is too large to be kept; stream stacks to save it");
+		if (streamstat == true && width * bytes > TiffWriter.STRIP)
+			throw new ColocalizationException("Rows of the colormap of " + name + " are too long for a TIFF file");
+	}
+
+	// Closes TIFF files read in strips
+	private static void close(Object[] pair) throws IOException {
+		if (pair != null && pair[0] instanceof TiffStrips) {
+			((TiffStrips) pair[0]).close();
+			((TiffStrips) pair[1]).close();
+		}
+	}
+
+	/**
+	 * Opens an image, as a virtual stack read from disk plane by plane if stacks
+	 * are streamed and the image is a TIFF file
+	 */
+	ImagePlus open(String path) {
+		String name = path.toLowerCase();
+		if (streamstat == true && (name.endsWith(".tif") || name.endsWith(".tiff"))) {
+			ImagePlus image = IJ.openVirtual(path);
+			if (image != null)
+				return image;
+		}
+		return new ImagePlus(path);
+	}
+
+	/**
+	 * Processes two input folders without ImageJ user interface:
+	 * Colocalization_batch_processor_ input1 input2 output [options]. It does not
+	 * clear the output folder; pairs done by a previous run are skipped unless
+	 * -restart is given. Several processes (on one or more machines) share the
+	 * work if each is started with a unique -node name on the same folders; only
+	 * one of them should be given -restart. With -channels all pairs of channels
+	 * are colocalized instead: Colocalization_batch_processor_ -channels input1
+	 * [input2 ...] output, one channel per input folder or multi-channel images
+	 * in a single input folder. With -sample Icorr is only estimated from random
+	 * rows (read on their own from uncompressed TIFF files).
+	 */
+	public static void main(String[] args) {
+		Colocalization_batch_processor_ batch = new Colocalization_batch_processor_();
+		ArrayList<String> paths = new ArrayList<String>();
+		boolean channels = false; // all pairs of channels are colocalized
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-threshold")) {
+					batch.thresholdstat = false;
+					batch.thresholdvalue1 = Double.parseDouble(args[++i]);
+					batch.thresholdvalue2 = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-threads"))
+					batch.threads = Math.max(1, Integer.parseInt(args[++i]));
+				else if (args[i].equals("-pairs"))
+					batch.pairs = Math.max(1, Integer.parseInt(args[++i]));
+				else if (args[i].equals("-nonmdps"))
+					batch.nMDPstat = false;
+				else if (args[i].equals("-binary"))
+					batch.nMDPformat = NMDPFile.FORMATS[1];
+				else if (args[i].equals("-nocolormaps"))
+					batch.colormapstat = false;
+				else if (args[i].equals("-indexed"))
+					batch.colormapformat = ColocalizationEngine.COLORMAPS[1];
+				else if (args[i].equals("-nmdpimages"))
+					batch.colormapformat = ColocalizationEngine.COLORMAPS[2];
+				else if (args[i].equals("-summaries"))
+					batch.summarystat = true;
+				else if (args[i].equals("-regions"))
+					batch.regionstat = true;
+				else if (args[i].equals("-significance")) {
+					String method = args[++i];
+					if (method.equals("scrambling"))
+						batch.significance = SignificanceTest.METHODS[1];
+					else if (method.equals("bootstrap"))
+						batch.significance = SignificanceTest.METHODS[2];
+					else
+						throw new IllegalArgumentException(method);
+				} else if (args[i].equals("-resamples"))
+					batch.resamples = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-block"))
+					batch.block = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-sample")) {
+					batch.samplingstat = true;
+					batch.precision = Double.parseDouble(args[++i]);
+				}
+				else if (args[i].equals("-stream"))
+					batch.streamstat = true;
+				else if (args[i].equals("-restart"))
+					batch.resumestat = false;
+				else if (args[i].equals("-node"))
+					batch.node = args[++i];
+				else if (args[i].equals("-lease"))
+					batch.lease = Math.max(1, Long.parseLong(args[++i])) * 1000;
+				else if (args[i].equals("-channels"))
+					channels = true;
+				else if (args[i].equals("-thresholds")) {
+					batch.thresholdstat = false;
+					String[] values = args[++i].split(",");
+					batch.thresholds = new double[values.length];
+					for (int j = 0; j < values.length; j++)
+						batch.thresholds[j] = Double.parseDouble(values[j]);
+				} else if (!args[i].startsWith("-"))
+					paths.add(args[i].endsWith(File.separator) ? args[i] : args[i] + File.separator);
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+			if (paths.size() < (channels ? 2 : 3) || (channels == false && paths.size() > 3))
+				throw new IllegalArgumentException("missing folder");
+		} catch (RuntimeException e) {
+			System.err.println("Usage: Colocalization_batch_processor_ input1 input2 output [-threshold t1 t2]"
+					+ " [-threads n] [-pairs n] [-nonmdps] [-binary] [-nocolormaps] [-indexed | -nmdpimages]"
+					+ " [-summaries] [-regions] [-significance scrambling|bootstrap [-resamples n] [-block n]] [-sample precision] [-stream] [-restart] [-node name [-lease seconds]]");
+			System.err.println("       Colocalization_batch_processor_ -channels input1 [input2 ...] output"
+					+ " [-thresholds t1,t2,...] [-threads n] [-nonmdps] [-binary] [-nocolormaps] [-indexed | -nmdpimages]"
+					+ " [-summaries] [-regions] [-significance scrambling|bootstrap [-resamples n] [-block n]] [-sample precision]");
+			System.exit(1);
+		}
+		String output = paths.remove(paths.size() - 1); // the output folder
+		if (batch.resumestat == false && channels == false)
+			BatchManifest.delete(output); // All pairs are processed again
+		batch.progress = new ColocalizationEngine.Progress() {
+			public void status(String message) {
+				System.out.println(message);
+			}
+
+			public void log(String message) {
+				System.out.println(message);
+			}
+
+			public void progress(long done, long total) {
+			}
+		};
+		try {
+			if (channels == true)
+				batch.process(paths.toArray(new String[paths.size()]), output);
+			else
+				batch.process(paths.get(0), paths.get(1), output);
+		} catch (ColocalizationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Estimates memory needed to process a pair of images in bytes: both decoded
+	 * stacks, the colormap of the given number of bytes per pixel (0 if it is not
+	 * requested) and working buffers. If stacks are streamed only the given
+	 * number of resident planes (or strips of planes of uncompressed TIFF files)
+	 * is counted. If uncompressed TIFF files are read in strips but not streamed,
+	 * only their resident strips and the whole colormap are counted. The size of
+	 * TIFF images is read from their headers. Sizes of other files are used as
+	 * they are.
+	 */
+	static long footprint(File file1, File file2, int colormapbytes, int resident, boolean streamed,
+			boolean strips) {
+		long[] size1 = size(file1);
+		long[] size2 = size(file2);
+		long inputs = size1[1] + size2[1];
+		long colormap = colormapbytes * Math.max(size1[0], size2[0]); // colormap pixels
+		long planes = Math.max(1, Math.max(size1[2], size2[2]));
+		if (streamed == true || strips == true) // Pairs of uncompressed TIFF files are read in strips
+			planes = Math.max(planes, Math.min(size1[3], size2[3]));
+		if (streamed == true && resident < planes)
+			return (inputs + colormap) / planes * resident + OVERHEAD;
+		if (streamed == false && strips == true && size1[4] == 1 && size2[4] == 1 && resident < planes)
+			inputs = inputs / planes * resident; // The files are mapped, not decoded
+		return inputs + colormap + OVERHEAD;
+	}
+
+	// Returns the number of pixels, the number of bytes, the number of planes,
+	// the number of strips read by TiffStrips of a decoded image and 1 if it is
+	// an uncompressed TIFF image (0 otherwise)
+	private static long[] size(File file) {
+		String name = file.getName().toLowerCase();
+		FileInfo[] info = name.endsWith(".tif") || name.endsWith(".tiff")
+				? Opener.getTiffFileInfo(file.getPath())
+				: null;
+		if (info == null || info.length == 0)
+			return new long[] { file.length(), file.length(), 1, 1, 0 }; // Assumes a single 8-bit plane
+		int planes = info.length == 1 ? info[0].nImages : info.length;
+		long pixels = (long) info[0].width * info[0].height * planes;
+		long strips = planes;
+		boolean uncompressed = info[0].compression == FileInfo.COMPRESSION_NONE;
+		if (uncompressed == true) {
+			int rows = Math.max(1, ColocalizationKernel.TILE / Math.max(1, info[0].width));
+			strips = planes * (long) ((info[0].height + rows - 1) / rows);
 		}
-		IJ.log("Batch processing has been completed"); // Updates log
+		return new long[] { pixels, pixels * info[0].getBytesPerPixel(), planes, strips, uncompressed ? 1 : 0 };
 	}
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.util.Arrays;
+import ij.*;
+import ij.gui.*;
+import ij.plugin.PlugIn;
+import ij.text.TextWindow;
+
+/**
+ * Colocalizes all pairs of channels of the current composite image or
+ * hyperstack and displays the Icorr matrix and the colormaps of the pairs.
+ * Each channel is thresholded once and the pairs are processed in parallel.
+ */
+public class Colocalization_channels_ implements PlugIn {
+	boolean thresholdstat = true; // 'Autothreshold' checkbox status
+	String thresholds = ""; // 'Thresholds' field (manual thresholds of the channels, separated by commas)
+	boolean colormapstat = true; // 'Display colormaps' checkbox status
+	String colormapformat = ColocalizationEngine.COLORMAPS[0]; // 'Colormap format' choice (RGB, indexed or nMDPs)
+	boolean summarystat = false; // 'nMDP summaries' checkbox status
+	String significance = SignificanceTest.METHODS[0]; // 'Significance test' choice
+	int resamples = 200; // the number of resamples of the significance test
+	int block = 8; // edge of the blocks of the significance test in pixels
+	int threads = Prefs.getThreads(); // the number of threads shared by the pairs
+
+	public void run(String arg) {
+		ImagePlus image = WindowManager.getCurrentImage();
+		if (image == null) {
+			IJ.noImage();
+			return;
+		}
+		if (image.getNChannels() < 2) {
+			IJ.showMessage("Colocalization Colormap", "A composite image or hyperstack with at least two channels is needed.");
+			return;
+		}
+		/**
+		 * Generates and opens the dialog window
+		 */
+		GenericDialog dialog = new GenericDialog("Colocalization Colormap (all channel pairs)", IJ.getInstance());
+		dialog.addMessage(image.getTitle() + ": " + image.getNChannels() + " channels");
+		dialog.addCheckbox("Autothreshold", thresholdstat); // "Autothreshold" checkbox
+		dialog.addStringField("Thresholds:", thresholds, 20); // manual thresholds of the channels
+		dialog.addCheckbox("Display colormaps", colormapstat); // "Display colormaps" checkbox
+		dialog.addChoice("Colormap format:", ColocalizationEngine.COLORMAPS, colormapformat); // RGB, indexed or nMDPs
+		dialog.addCheckbox("nMDP summaries", summarystat); // "nMDP summaries" checkbox
+		dialog.addChoice("Significance test:", SignificanceTest.METHODS, significance); // none, block scrambling or bootstrap
+		dialog.addNumericField("Resamples:", resamples, 0); // the number of resamples of the significance test
+		dialog.addNumericField("Block size:", block, 0); // the edge of the blocks of the significance test
+		dialog.addNumericField("Threads:", threads, 0); // the number of threads
+		dialog.showDialog(); // Displays dialog window
+		if (dialog.wasCanceled())
+			return;
+		/**
+		 * Gets values entered in the dialog window
+		 */
+		thresholdstat = dialog.getNextBoolean(); // "Autothreshold" true\false
+		colormapstat = dialog.getNextBoolean(); // "Display colormaps" true\false
+		summarystat = dialog.getNextBoolean(); // "nMDP summaries" true\false
+		thresholds = dialog.getNextString(); // manual thresholds
+		colormapformat = dialog.getNextChoice(); // format of the colormaps
+		significance = dialog.getNextChoice(); // the significance test
+		resamples = (int) dialog.getNextNumber(); // the number of resamples
+		block = (int) dialog.getNextNumber(); // the edge of the blocks in pixels
+		threads = Math.max(1, (int) dialog.getNextNumber()); // the number of threads
+		ColocalizationEngine engine = new ColocalizationEngine();
+		engine.autothreshold = thresholdstat;
+		if (thresholdstat == false) {
+			String[] values = thresholds.trim().split("\\s*,\\s*");
+			engine.thresholds = new double[values.length];
+			try {
+				for (int i = 0; i < values.length; i++)
+					engine.thresholds[i] = Double.parseDouble(values[i]);
+			} catch (NumberFormatException e) {
+				IJ.showMessage("Colocalization Colormap", "Thresholds have to be numbers separated by commas.");
+				return;
+			}
+		}
+		engine.colormap = colormapstat;
+		engine.colormapformat = colormapformat;
+		engine.summary = summarystat;
+		engine.significance = significance;
+		engine.resamples = resamples;
+		engine.block = block;
+		engine.threads = threads;
+		engine.progress = Colocalization_.IMAGEJ;
+		/**
+		 * Colocalizes all pairs of channels and displays results
+		 */
+		IJ.log("Image: " + image.getTitle());
+		ColocalizationMatrix matrix;
+		try {
+			matrix = engine.colocalize(ColocalizationMatrix.channels(image));
+		} catch (ColocalizationException e) {
+			IJ.showMessage(e.getMessage());
+			return;
+		}
+		IJ.showStatus("Displaying results..."); // Updates process status
+		String[] lines = matrix.lines();
+		new TextWindow("Icorr matrix " + image.getTitle(), lines[0],
+				String.join("\n", Arrays.copyOfRange(lines, 1, lines.length)), 120 + 110 * matrix.names.length,
+				120 + 25 * matrix.names.length);
+		for (int i = 0; i < matrix.names.length; i++)
+			for (int j = i + 1; j < matrix.names.length; j++) {
+				ColocalizationResult result = matrix.results[i][j];
+				if (result == null)
+					continue;
+				if (result.colormap != null)
+					ColocalizationEngine.image(matrix.name(i, j) + " colocalization", result.colormap, colormapformat)
+							.show(); // Displays colormap image
+				if (result.summary != null) // Displays summary of the nMDP distribution
+					new TextWindow("nMDP summary " + matrix.name(i, j), "Statistic\tValue",
+							String.join("\n", result.summary.lines()), 435, 320);
+				if (result.significance != null) // Displays significance of Icorr
+					new TextWindow("Significance of Icorr " + matrix.name(i, j), "Statistic\tValue",
+							String.join("\n", result.significance.lines()), 435, 260);
+			}
+		IJ.showStatus("Colocalization colormap - the process has been finished"); // Updates process status
+		IJ.log("");
+	}
+}
\ No newline at end of file
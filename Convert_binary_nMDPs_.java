@@ -0,0 +1,52 @@
+/** 
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import ij.IJ;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+
+public class Convert_binary_nMDPs_ implements PlugIn {
+	public void run(String arg) {
+		// Asks user to select a binary nMDP file
+		OpenDialog openwindow = new OpenDialog("Open binary nMDPs", "");
+		if (openwindow.getFileName() == null)
+			return;
+		String openfile = openwindow.getDirectory() + openwindow.getFileName();
+		try {
+			NMDPFile file = NMDPFile.open(openfile);
+			try {
+				// Logs the header of the binary file
+				IJ.log("nMDPs: " + openfile);
+				IJ.log("Size: " + file.width + " x " + file.height + " x " + file.depth);
+				IJ.log("Number of nMDPs: " + file.count);
+				IJ.log("Threshold 1: " + file.threshold1 + ", threshold 2: " + file.threshold2);
+				IJ.log("Mean 1: " + file.mean1 + ", mean 2: " + file.mean2);
+				IJ.log("Maximum 1: " + file.max1 + ", maximum 2: " + file.max2);
+				// Saves nMDPs as text in the file specified by the user
+				String name = openwindow.getFileName().replaceFirst("\\" + NMDPFile.EXTENSION + "$", "");
+				SaveDialog savewindow = new SaveDialog("Save nMDPs as text", name, ".txt");
+				if (savewindow.getFileName() == null)
+					return;
+				IJ.showStatus("Converting nMDPs..."); // Updates process status
+				PrintWriter printwritter = new PrintWriter(new BufferedOutputStream(
+						new FileOutputStream(savewindow.getDirectory() + savewindow.getFileName())));
+				file.toText(printwritter);
+				printwritter.close();
+				IJ.showStatus("");
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			IJ.showMessage(e.getMessage());
+		}
+	}
+}
\ No newline at end of file
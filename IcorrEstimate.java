@@ -0,0 +1,377 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Estimate of Icorr from a stratified random sample of rows, for screens of
+ * many pairs. Each plane is a stratum and the same number of random rows is
+ * drawn from every plane (without replacement); all pixels of a sampled row are
+ * used. Thresholds (autothresholds from the histograms of the sample), means,
+ * maxima and Icorr are calculated from the sampled pixels like those of the
+ * images.
+ * <p>
+ * Rows are drawn in rounds: the number of rows per plane grows until the
+ * half-width of the 95% confidence interval of Icorr is at most the requested
+ * precision, or all rows are sampled (then the estimate is exact). The
+ * half-width is the sampling error of Icorr for the estimated means (of a
+ * ratio estimator of a stratified sample of clusters, the rows, so the
+ * correlation of neighbouring pixels within a row is taken into account), plus
+ * the largest change of Icorr while both means move within their own 95%
+ * intervals. The second term is needed because Icorr jumps whenever a mean
+ * crosses an intensity value, which the sampling error of Icorr does not
+ * cover. The interval is that of Icorr for the thresholds used: autothresholds
+ * of the sample may differ from those of the images (16-bit histograms are
+ * binned between the minimum and maximum of the sample). The maxima are those
+ * of the sample, so they may be below the maxima of the images.
+ * <p>
+ * TIFF files read in strips are read row by row, so only the sampled rows are
+ * read. Planes of stacks are read whole (planes of virtual stacks once per
+ * round). Rows are drawn from the seed, so the estimate does not depend on the
+ * number of threads.
+ */
+public final class IcorrEstimate {
+	static final double LEVEL = 0.95; // the confidence level of the interval
+	static final double Z = 1.959963984540054; // the quantile of the normal distribution for LEVEL
+	static final int FIRST = 1 << 16; // the number of pixels sampled in the first round (at least 2 rows per plane)
+
+	public double precision; // the requested half-width of the confidence interval
+	public double Icorr; // the estimate of Icorr
+	public double bound; // the half-width of the 95% confidence interval of Icorr
+	public double lower; // the lower bound of the 95% confidence interval
+	public double upper; // the upper bound of the 95% confidence interval
+	public int rounds; // the number of rounds of sampling
+	public long rows; // the number of rows sampled
+	public long total; // the number of rows of all planes
+	public long pixels; // the number of pixels sampled
+	public long roi; // the number of sampled pixels in the ROI
+
+	/**
+	 * Returns true if the requested precision has been reached (always true if
+	 * all rows were sampled)
+	 */
+	public boolean reached() {
+		return bound <= precision;
+	}
+
+	/**
+	 * Samples rows of source until Icorr is estimated with the precision of
+	 * engine and sets the thresholds, statistics and Icorr of result. Thresholds
+	 * of ImagePlus images (null for TIFF strips) that can not be calculated from
+	 * a histogram are calculated from the whole images by StackThreshold.
+	 */
+	static IcorrEstimate estimate(ColocalizationEngine engine, ColocalizationKernel.Source source, int bitDepth,
+			final int width, final int height, int depth, ImagePlus image1, ImagePlus image2,
+			ColocalizationResult result, ColocalizationEngine.Progress progress) throws ColocalizationException {
+		if (!(engine.precision > 0))
+			throw new ColocalizationException("The precision of the Icorr estimate has to be positive");
+		IcorrEstimate estimate = new IcorrEstimate();
+		estimate.precision = engine.precision;
+		estimate.total = (long) height * depth;
+		boolean histogram = engine.autothreshold == true
+				&& (image1 == null || (StackThreshold.supported(image1) == true && StackThreshold.supported(image2) == true));
+		if (engine.autothreshold == false) {
+			if (Double.isNaN(engine.threshold1) == true || Double.isNaN(engine.threshold2) == true)
+				throw new ColocalizationException(
+						"The threshold value for at least one of the images has not been specified");
+			result.threshold1 = engine.threshold1;
+			result.threshold2 = engine.threshold2;
+		} else if (histogram == false) {
+			result.threshold1 = StackThreshold.threshold(image1);
+			result.threshold2 = StackThreshold.threshold(image2);
+		}
+		final int[][][] sampled = new int[depth][][]; // (value1 << 16) | value2 of the sampled rows of each plane
+		final int[][] order = new int[depth][]; // the order in which rows of each plane are drawn
+		for (int plane = 0; plane < depth; plane++)
+			order[plane] = permutation(height, engine.seed, plane + 1);
+		ColocalizationKernel kernel = new ColocalizationKernel(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		kernel.threads = engine.threads;
+		int n = 0; // rows sampled per plane
+		int next = (int) Math.min(height, Math.max(2, (FIRST + (long) width * depth - 1) / ((long) width * depth)));
+		while (true) {
+			/**
+			 * Reads the rows of this round, plane by plane
+			 */
+			List<Callable<int[][]>> tasks = new ArrayList<Callable<int[][]>>();
+			for (int plane = 1; plane <= depth; plane++)
+				tasks.add(new Rows(source, plane, order[plane - 1], n, next, width, height));
+			final int from = n;
+			final int[] plane = { 0 };
+			kernel.run(tasks, new Consumer<int[][]>() {
+				public void accept(int[][] rows) {
+					if (from == 0)
+						sampled[plane[0]] = new int[height][];
+					System.arraycopy(rows, 0, sampled[plane[0]], from, rows.length);
+					plane[0]++;
+				}
+			});
+			n = next;
+			estimate.rounds++;
+			estimate.rows = (long) n * depth;
+			estimate.pixels = estimate.rows * width;
+			progress.progress(n, height); // Reports rows sampled per plane
+			/**
+			 * Estimates thresholds, means and maxima from the sample
+			 */
+			boolean exhausted = n == height; // All rows have been sampled
+			if (histogram == true) {
+				long[] histogram1 = new long[1 << bitDepth];
+				long[] histogram2 = new long[1 << bitDepth];
+				for (int[][] rows : sampled)
+					for (int r = 0; r < n; r++)
+						for (int value : rows[r]) {
+							histogram1[value >>> 16]++;
+							histogram2[value & 0xffff]++;
+						}
+				if (image1 != null) {
+					result.threshold1 = StackThreshold.threshold(image1, histogram1);
+					result.threshold2 = StackThreshold.threshold(image2, histogram2);
+				} else {
+					result.threshold1 = StackThreshold.threshold(bitDepth, false, histogram1);
+					result.threshold2 = StackThreshold.threshold(bitDepth, false, histogram2);
+				}
+			}
+			long[][] counts = new long[depth][n]; // ROI pixels of each sampled row
+			long[][] sums1 = new long[depth][n]; // sums of image 1 ROI intensities of each sampled row
+			long[][] sums2 = new long[depth][n]; // sums of image 2 ROI intensities of each sampled row
+			long[] maxima = new long[2];
+			statistics(sampled, n, result.threshold1, result.threshold2, counts, sums1, sums2, maxima);
+			long count = total(counts);
+			double mean1 = (double) total(sums1) / count;
+			double mean2 = (double) total(sums2) / count;
+			if (count == 0 || maxima[0] == mean1 || maxima[1] == mean2) {
+				if (exhausted == false) {
+					next = Math.min(height, 2 * n);
+					continue; // The sample does not hold enough of the ROI yet
+				}
+				if (count == 0)
+					throw new ColocalizationException(
+							"Exception (impossible case):\n \nAt least one of your images can not be processed."
+									+ "\nProbably there are only black pixels above the threshold."
+									+ "\nCheck image and threshold parameters.");
+				throw new ColocalizationException(
+						"Exception (impossible case):\n \nAt least one of your images can not be processed."
+								+ "\nProbably all above-threshold pixels contain the same intensity value.\n \n"
+								+ "Note that mean intensity value and maximum intensity value\nmust be different "
+								+ "to calculate the mean deviation product properly.");
+			}
+			/**
+			 * Estimates Icorr and the half-width of its interval: the sampling error of
+			 * Icorr for these means, plus the largest change of Icorr while the means move
+			 * within their intervals (a mean that crosses an intensity changes the sign of
+			 * all nMDPs of that intensity at once)
+			 */
+			double error1 = exhausted ? 0 : Z * error(sums1, counts, mean1, height); // the half-width of the interval of mean 1
+			double error2 = exhausted ? 0 : Z * error(sums2, counts, mean2, height); // the half-width of the interval of mean 2
+			long[] corners = new long[4]; // positive nMDPs for the means at the corners of their intervals
+			long[][] positives = positives(sampled, n, result.threshold1, result.threshold2, mean1, mean2, error1,
+					error2, corners);
+			long positive = total(positives);
+			double Icorr = (double) positive / count;
+			double bound = 0;
+			if (exhausted == false) {
+				double shift = 0; // the largest change of Icorr within the intervals of the means
+				for (long moved : corners)
+					shift = Math.max(shift, Math.abs((double) moved / count - Icorr));
+				bound = Z * error(positives, counts, Icorr, height) + shift;
+			}
+			double scale = (double) height / n; // rows of a plane per sampled row
+			estimate.Icorr = Icorr;
+			estimate.bound = bound;
+			estimate.lower = Math.max(0, Icorr - bound);
+			estimate.upper = Math.min(1, Icorr + bound);
+			estimate.roi = count;
+			result.count = Math.round(scale * count); // the estimated number of pixels in the ROI
+			result.positive = Math.round(scale * positive); // the estimated number of positive nMDPs
+			result.mean1 = mean1;
+			result.mean2 = mean2;
+			result.max1 = maxima[0];
+			result.max2 = maxima[1];
+			result.Icorr = Icorr;
+			progress.log("Icorr estimate after " + n + " of " + height + " rows per plane: " + Icorr + " +/- " + bound); // Updates log
+			if (exhausted == true || bound <= estimate.precision)
+				return estimate;
+			// The half-width falls about with the square root of the number of rows
+			double needed = n * (bound / estimate.precision) * (bound / estimate.precision);
+			next = (int) Math.min(height, Math.max(2L * n, Math.min(8L * n, (long) Math.ceil(needed))));
+		}
+	}
+
+	// Adds the ROI pixels, the sums of their intensities and the maxima of the
+	// first n sampled rows of each plane
+	private static void statistics(int[][][] sampled, int n, double threshold1, double threshold2, long[][] counts,
+			long[][] sums1, long[][] sums2, long[] maxima) {
+		for (int p = 0; p < sampled.length; p++)
+			for (int r = 0; r < n; r++)
+				for (int value : sampled[p][r]) {
+					int value1 = value >>> 16;
+					int value2 = value & 0xffff;
+					if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+						counts[p][r]++;
+						sums1[p][r] += value1;
+						sums2[p][r] += value2;
+						if (value1 > maxima[0])
+							maxima[0] = value1;
+						if (value2 > maxima[1])
+							maxima[1] = value2;
+					}
+				}
+	}
+
+	// Returns the number of positive nMDPs of each of the first n sampled rows of
+	// each plane for the given means, and adds the numbers of all rows for means
+	// mean1 -/+ error1 and mean2 -/+ error2 to corners
+	private static long[][] positives(int[][][] sampled, int n, double threshold1, double threshold2, double mean1,
+			double mean2, double error1, double error2, long[] corners) {
+		long[][] positives = new long[sampled.length][n];
+		for (int p = 0; p < sampled.length; p++)
+			for (int r = 0; r < n; r++)
+				for (int value : sampled[p][r]) {
+					int value1 = value >>> 16;
+					int value2 = value & 0xffff;
+					if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+						double deviation1 = value1 - mean1;
+						double deviation2 = value2 - mean2;
+						if (deviation1 * deviation2 > 0) // nMDP is positive
+							positives[p][r]++;
+						if ((deviation1 + error1) * (deviation2 + error2) > 0)
+							corners[0]++;
+						if ((deviation1 - error1) * (deviation2 + error2) > 0)
+							corners[1]++;
+						if ((deviation1 + error1) * (deviation2 - error2) > 0)
+							corners[2]++;
+						if ((deviation1 - error1) * (deviation2 - error2) > 0)
+							corners[3]++;
+					}
+				}
+		return positives;
+	}
+
+	private static long total(long[][] values) {
+		long total = 0;
+		for (long[] plane : values)
+			for (long value : plane)
+				total += value;
+		return total;
+	}
+
+	// Returns the standard error of the ratio of the totals of y and x (rows are
+	// clusters, planes are strata with the same number of sampled rows)
+	private static double error(long[][] y, long[][] x, double ratio, int height) {
+		int n = y[0].length;
+		double variance = 0;
+		for (int p = 0; p < y.length; p++) {
+			double mean = 0;
+			for (int r = 0; r < n; r++)
+				mean += y[p][r] - ratio * x[p][r];
+			mean /= n;
+			double squares = 0;
+			for (int r = 0; r < n; r++) {
+				double deviation = y[p][r] - ratio * x[p][r] - mean;
+				squares += deviation * deviation;
+			}
+			variance += (1 - (double) n / height) * squares / (n - 1) / n;
+		}
+		return Math.sqrt(variance) / ((double) total(x) / n);
+	}
+
+	// Returns a random permutation of the rows of a plane drawn from the seed
+	private static int[] permutation(int height, long seed, int plane) {
+		int[] rows = new int[height];
+		for (int i = 0; i < height; i++)
+			rows[i] = i;
+		long state = seed ^ (plane * 0xC2B2AE3D27D4EB4FL);
+		for (int i = height - 1; i > 0; i--) {
+			state += 0x9E3779B97F4A7C15L;
+			int j = (int) (((mix(state) >>> 32) * (i + 1)) >>> 32);
+			int swap = rows[i];
+			rows[i] = rows[j];
+			rows[j] = swap;
+		}
+		return rows;
+	}
+
+	// SplitMix64 output function
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns results as tab-separated name and value lines
+	 */
+	public String[] lines() {
+		return new String[] { "Icorr estimate\t" + Icorr, "95% lower\t" + lower, "95% upper\t" + upper,
+				"Half-width\t" + bound, "Requested precision\t" + precision, "Precision reached\t" + reached(),
+				"Rounds\t" + rounds, "Sampled rows\t" + rows, "Rows\t" + total, "Sampled pixels\t" + pixels,
+				"Sampled ROI pixels\t" + roi };
+	}
+
+	/**
+	 * Writes results
+	 */
+	void write(PrintWriter writer) {
+		for (String line : lines())
+			writer.println(line);
+	}
+
+	/**
+	 * Reads rows of a plane as (value1 << 16) | value2 pixels: the rows drawn in
+	 * positions [from, to) of its order. A source that returns whole planes is
+	 * read once.
+	 */
+	private static final class Rows implements Callable<int[][]> {
+		private final ColocalizationKernel.Source source;
+		private final int plane;
+		private final int[] order; // the order in which rows are drawn
+		private final int from, to; // the range of positions in order
+		private final int width, height;
+
+		Rows(ColocalizationKernel.Source source, int plane, int[] order, int from, int to, int width, int height) {
+			this.source = source;
+			this.plane = plane;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+			this.width = width;
+			this.height = height;
+		}
+
+		public int[][] call() {
+			int[][] rows = new int[to - from][];
+			ImageProcessor[] processors = null;
+			for (int i = from; i < to; i++) {
+				int[] band = source.row(plane, order[i]);
+				if (processors == null || processors[0].getHeight() != height)
+					processors = source.read(band);
+				Object pixels1 = processors[0].getPixels();
+				Object pixels2 = processors[1].getPixels();
+				int[] row = new int[width];
+				if (pixels1 instanceof byte[]) {
+					byte[] bytes1 = (byte[]) pixels1;
+					byte[] bytes2 = (byte[]) pixels2;
+					for (int x = 0; x < width; x++)
+						row[x] = (bytes1[band[1] + x] & 0xff) << 16 | (bytes2[band[1] + x] & 0xff);
+				} else {
+					short[] shorts1 = (short[]) pixels1;
+					short[] shorts2 = (short[]) pixels2;
+					for (int x = 0; x < width; x++)
+						row[x] = (shorts1[band[1] + x] & 0xffff) << 16 | (shorts2[band[1] + x] & 0xffff);
+				}
+				rows[i - from] = row;
+			}
+			return rows;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,246 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import ij.process.ImageProcessor;
+
+/**
+ * Joint intensity histogram of two channels. Since nMDP depends only on the
+ * pair of pixel values and on the means and maxima of both ROIs, the
+ * statistics, the number of positive nMDPs and Icorr can be derived from the
+ * histogram without a second scan of the images. If the histogram is built
+ * with thresholds of -Infinity it holds all pixels, and statistics for any
+ * thresholds can be derived from it afterwards. The intensity histograms of
+ * both channels are collected in the same scan (e.g. for autothresholding).
+ *
+ * 8-bit pairs are counted in a dense 256x256 table. Other pairs are counted in
+ * a sparse open-addressing table of (value1, value2) keys; if the number of
+ * distinct pairs exceeds MAX_PAIRS the histogram overflows and the caller has
+ * to scan the images instead. Partial histograms built by several threads can
+ * share an overflow flag: once one of them overflows, the others release their
+ * tables and only collect the intensity histograms.
+ */
+final class JointHistogram {
+	static final int MAX_PAIRS = 1 << 21; // the maximum number of distinct pairs in a sparse histogram
+
+	final boolean dense; // true for the 256x256 table of 8-bit pairs
+	final double threshold1; // pixels below both thresholds are not counted
+	final double threshold2;
+	private long[] counts; // the number of pixels for each pair
+	private long[] histogram1; // intensity histogram of all pixels in image 1
+	private long[] histogram2; // intensity histogram of all pixels in image 2
+	private int[] keys; // (value1 << 16) | value2 of sparse pairs, used slots have counts > 0
+	private int pairs; // the number of distinct sparse pairs
+	private boolean overflow; // true if the sparse table exceeded MAX_PAIRS or the input is not supported
+	private final AtomicBoolean overflowed; // set when any histogram sharing it overflows
+
+	JointHistogram(boolean dense, double threshold1, double threshold2) {
+		this(dense, threshold1, threshold2, new AtomicBoolean());
+	}
+
+	JointHistogram(boolean dense, double threshold1, double threshold2, AtomicBoolean overflowed) {
+		this.dense = dense;
+		this.overflowed = overflowed;
+		this.threshold1 = threshold1;
+		this.threshold2 = threshold2;
+		if (dense)
+			counts = new long[256 * 256];
+		else {
+			counts = new long[1 << 12];
+			keys = new int[1 << 12];
+		}
+		histogram1 = new long[dense ? 256 : 65536];
+		histogram2 = new long[dense ? 256 : 65536];
+	}
+
+	/**
+	 * Returns true if the histogram is incomplete and can not be used
+	 */
+	boolean overflow() {
+		return overflow;
+	}
+
+	/**
+	 * Counts ROI pixels with indices from (inclusive) to (exclusive)
+	 */
+	void add(ImageProcessor processor1, ImageProcessor processor2, int from, int to) {
+		if (!overflow && overflowed.get())
+			discard(); // Another histogram has overflowed
+		Object pixels1 = processor1.getPixels();
+		Object pixels2 = processor2.getPixels();
+		if (dense && pixels1 instanceof byte[] && pixels2 instanceof byte[]) {
+			byte[] bytes1 = (byte[]) pixels1;
+			byte[] bytes2 = (byte[]) pixels2;
+			for (int i = from; i < to; i++) {
+				int value1 = bytes1[i] & 0xff;
+				int value2 = bytes2[i] & 0xff;
+				histogram1[value1]++;
+				histogram2[value2]++;
+				if (value1 >= threshold1 || value2 >= threshold2) // Only pixels in the ROI are taken into account
+					counts[(value1 << 8) | value2]++;
+			}
+		} else if (!dense && pixels1 instanceof short[] && pixels2 instanceof short[]) {
+			short[] shorts1 = (short[]) pixels1;
+			short[] shorts2 = (short[]) pixels2;
+			for (int i = from; i < to; i++) {
+				int value1 = shorts1[i] & 0xffff;
+				int value2 = shorts2[i] & 0xffff;
+				histogram1[value1]++;
+				histogram2[value2]++;
+				if (!overflow && (value1 >= threshold1 || value2 >= threshold2))
+					increment((value1 << 16) | value2, 1);
+			}
+		} else
+			discard(); // Mixed or unsupported pixel types
+	}
+
+	/**
+	 * Adds counts of another histogram of the same kind
+	 */
+	void add(JointHistogram histogram) {
+		for (int i = 0; i < histogram1.length; i++) {
+			histogram1[i] += histogram.histogram1[i];
+			histogram2[i] += histogram.histogram2[i];
+		}
+		if (histogram.overflow && !overflow)
+			discard();
+		if (overflow)
+			return;
+		if (dense) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += histogram.counts[i];
+		} else {
+			for (int i = 0; i < histogram.counts.length && !overflow; i++)
+				if (histogram.counts[i] > 0)
+					increment(histogram.keys[i], histogram.counts[i]);
+		}
+	}
+
+	private void increment(int key, long count) {
+		int mask = keys.length - 1;
+		int slot = (key * 0x9E3779B9) >>> 7 & mask;
+		while (counts[slot] > 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		if (counts[slot] == 0) {
+			if (pairs == MAX_PAIRS) {
+				discard();
+				return;
+			}
+			keys[slot] = key;
+			pairs++;
+		}
+		counts[slot] += count;
+		if (pairs * 2 > keys.length)
+			grow();
+	}
+
+	private void grow() {
+		if (overflowed.get()) {
+			discard(); // Another histogram has overflowed
+			return;
+		}
+		int[] oldkeys = keys;
+		long[] oldcounts = counts;
+		keys = new int[oldkeys.length * 2];
+		counts = new long[oldcounts.length * 2];
+		pairs = 0;
+		for (int i = 0; i < oldkeys.length; i++)
+			if (oldcounts[i] > 0)
+				increment(oldkeys[i], oldcounts[i]);
+	}
+
+	// Marks the histogram (and those sharing its flag) as overflowed and releases
+	// the sparse table; the intensity histograms are still collected
+	private void discard() {
+		overflow = true;
+		overflowed.set(true);
+		if (!dense) {
+			counts = new long[0];
+			keys = new int[0];
+			pairs = 0;
+		}
+	}
+
+	/**
+	 * Returns the intensity histogram of image 1 (256 or 65536 bins)
+	 */
+	long[] histogram1() {
+		return histogram1;
+	}
+
+	/**
+	 * Returns the intensity histogram of image 2 (256 or 65536 bins)
+	 */
+	long[] histogram2() {
+		return histogram2;
+	}
+
+	/**
+	 * Returns sums, count and maxima of the ROIs defined by the thresholds in the
+	 * layout used by ColocalizationKernel.statistics()
+	 */
+	long[] statistics(double threshold1, double threshold2) {
+		long[] stats = new long[ColocalizationKernel.STATISTICS];
+		for (int i = 0; i < counts.length; i++) {
+			long count = counts[i];
+			if (count == 0)
+				continue;
+			int value1 = value1(i);
+			int value2 = value2(i);
+			if (value1 < threshold1 && value2 < threshold2)
+				continue;
+			stats[ColocalizationKernel.SUM1] += value1 * count;
+			stats[ColocalizationKernel.SUM2] += value2 * count;
+			stats[ColocalizationKernel.COUNT] += count;
+			if (value1 > stats[ColocalizationKernel.MAX1])
+				stats[ColocalizationKernel.MAX1] = value1;
+			if (value2 > stats[ColocalizationKernel.MAX2])
+				stats[ColocalizationKernel.MAX2] = value2;
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the number of positive nMDPs for the thresholds and statistics set
+	 * in kernel
+	 */
+	long positive(ColocalizationKernel kernel) {
+		long positive = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0)
+				continue;
+			int value1 = value1(i);
+			int value2 = value2(i);
+			if ((value1 >= kernel.threshold1 || value2 >= kernel.threshold2) && kernel.nMDP(value1, value2) > 0)
+				positive += counts[i];
+		}
+		return positive;
+	}
+
+	/**
+	 * Adds nMDPs of the ROI pixels for the thresholds and statistics set in kernel
+	 * to summary
+	 */
+	void summary(ColocalizationKernel kernel, NMDPSummary summary) {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0)
+				continue;
+			int value1 = value1(i);
+			int value2 = value2(i);
+			if (value1 >= kernel.threshold1 || value2 >= kernel.threshold2)
+				summary.add(kernel.nMDP(value1, value2), counts[i]);
+		}
+	}
+
+	private int value1(int slot) {
+		return dense ? slot >>> 8 : keys[slot] >>> 16;
+	}
+
+	private int value2(int slot) {
+		return dense ? slot & 0xff : keys[slot] & 0xffff;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+
+/**
+ * Growable buffer of nMDP values stored in primitive double[] chunks (8 bytes
+ * per value instead of a boxed Double in a list). A buffer created with a sink
+ * does not keep its values: every full chunk is written to the sink right away,
+ * so memory use does not depend on the size of the stack.
+ */
+final class NMDPBuffer {
+	static final int CHUNK = 1 << 16; // the maximum number of values in a chunk
+
+	/**
+	 * Destination of nMDP values (text or binary nMDP file)
+	 */
+	interface Sink {
+		void write(double[] values, int length) throws IOException;
+	}
+
+	private final Sink sink; // the sink of a streaming buffer (null if values are kept)
+	private final ArrayList<double[]> chunks = new ArrayList<double[]>(); // full chunks
+	private double[] chunk = new double[1024]; // the chunk being filled
+	private int position; // the number of values in chunk
+	private long size; // the number of values added to the buffer
+
+	NMDPBuffer() {
+		this(null);
+	}
+
+	NMDPBuffer(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Returns a sink that writes values as text, one value per line
+	 */
+	static Sink text(final PrintWriter writer) {
+		return new Sink() {
+			public void write(double[] values, int length) {
+				for (int i = 0; i < length; i++)
+					writer.println(values[i]);
+			}
+		};
+	}
+
+	/**
+	 * Adds a value at the end of the buffer
+	 */
+	void add(double nMDP) {
+		if (position == chunk.length)
+			next();
+		chunk[position++] = nMDP;
+		size++;
+	}
+
+	/**
+	 * Adds all values of another buffer at the end of the buffer
+	 */
+	void add(NMDPBuffer buffer) {
+		for (double[] values : buffer.chunks)
+			for (double value : values)
+				add(value);
+		for (int i = 0; i < buffer.position; i++)
+			add(buffer.chunk[i]);
+	}
+
+	private void next() {
+		if (sink != null) {
+			write(sink, chunk, position);
+		} else {
+			chunks.add(chunk);
+			chunk = new double[Math.min(CHUNK, chunk.length * 2)];
+		}
+		position = 0;
+	}
+
+	/**
+	 * Returns the number of values added to the buffer
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the values kept in the buffer as an array
+	 */
+	double[] toArray() {
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("Too many nMDPs for an array: " + size);
+		final double[] values = new double[(int) size];
+		write(new Sink() {
+			int position; // the number of values copied
+
+			public void write(double[] chunk, int length) {
+				System.arraycopy(chunk, 0, values, position, length);
+				position += length;
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Writes the values kept in the buffer to a sink
+	 */
+	void write(Sink sink) {
+		for (double[] values : chunks)
+			write(sink, values, values.length);
+		write(sink, chunk, position);
+	}
+
+	/**
+	 * Writes values still waiting in a streaming buffer to its sink
+	 */
+	void flush() {
+		if (sink != null) {
+			write(sink, chunk, position);
+			position = 0;
+		}
+	}
+
+	// I/O errors are rethrown unchecked, because values are added from kernel loops
+	private static void write(Sink sink, double[] values, int length) {
+		try {
+			sink.write(values, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
\ No newline at end of file
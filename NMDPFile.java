@@ -0,0 +1,210 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary nMDP file. The file starts with a little-endian header:
+ *
+ * <pre>
+ * int    magic ("NMDP")      int    version
+ * int    width               int    height            int    depth
+ * long   the number of nMDPs (ROI pixels)
+ * double threshold1          double threshold2
+ * double mean1               double mean2
+ * double max1                double max2
+ * </pre>
+ *
+ * followed by nMDPs as little-endian float32 values in pixel order. Files are
+ * written through a buffered NIO channel (the number of nMDPs is filled in by
+ * close()) and read through memory-mapped windows. main() converts a binary
+ * file to the text format used by 'Save nMDPs'.
+ */
+final class NMDPFile implements NMDPBuffer.Sink, Closeable {
+	static final String EXTENSION = ".nmdp"; // extension of binary nMDP files
+	static final String[] FORMATS = { "Text", "Binary" }; // items of the 'nMDP format' choice
+	static final int MAGIC = 'N' | 'M' << 8 | 'D' << 16 | 'P' << 24; // "NMDP" in little-endian order
+	static final int VERSION = 1;
+	static final int HEADER = 4 + 4 + 3 * 4 + 8 + 6 * 8; // size of the header in bytes
+	static final int WINDOW = 1 << 26; // the number of values mapped at once by the reader
+
+	int width; // width of the images in pixels
+	int height; // height of the images in pixels
+	int depth; // the number of planes
+	long count; // the number of nMDPs
+	double threshold1; // the threshold for image 1
+	double threshold2; // the threshold for image 2
+	double mean1; // mean pixel intensity for the image 1 ROI
+	double mean2; // mean pixel intensity for the image 2 ROI
+	double max1; // max intensity in image 1 ROI
+	double max2; // max intensity in image 2 ROI
+
+	private final FileChannel channel;
+	private ByteBuffer buffer; // write buffer (null for files opened for reading)
+	private FloatBuffer floats; // float view of buffer
+
+	private NMDPFile(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates a binary nMDP file. Values are added with write() and the file has
+	 * to be closed to complete the header.
+	 */
+	static NMDPFile create(String path, int width, int height, int depth, double threshold1, double threshold2,
+			double mean1, double mean2, double max1, double max2) throws IOException {
+		NMDPFile file = new NMDPFile(FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+		file.width = width;
+		file.height = height;
+		file.depth = depth;
+		file.threshold1 = threshold1;
+		file.threshold2 = threshold2;
+		file.mean1 = mean1;
+		file.mean2 = mean2;
+		file.max1 = max1;
+		file.max2 = max2;
+		file.buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		file.floats = file.buffer.asFloatBuffer();
+		file.channel.position(HEADER);
+		return file;
+	}
+
+	/**
+	 * Opens a binary nMDP file for reading and reads its header
+	 */
+	static NMDPFile open(String path) throws IOException {
+		NMDPFile file = new NMDPFile(FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && file.channel.read(header) >= 0)
+			;
+		header.flip();
+		if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION) {
+			file.channel.close();
+			throw new IOException(path + " is not a binary nMDP file");
+		}
+		file.width = header.getInt();
+		file.height = header.getInt();
+		file.depth = header.getInt();
+		file.count = header.getLong();
+		file.threshold1 = header.getDouble();
+		file.threshold2 = header.getDouble();
+		file.mean1 = header.getDouble();
+		file.mean2 = header.getDouble();
+		file.max1 = header.getDouble();
+		file.max2 = header.getDouble();
+		return file;
+	}
+
+	/**
+	 * Appends values as float32
+	 */
+	public void write(double[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			if (!floats.hasRemaining())
+				drain();
+			floats.put((float) values[i]);
+		}
+		count += length;
+	}
+
+	private void drain() throws IOException {
+		buffer.position(0);
+		buffer.limit(floats.position() * 4);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		floats.clear();
+	}
+
+	/**
+	 * Completes the header of a file being written and closes the file
+	 */
+	public void close() throws IOException {
+		try {
+			if (buffer != null) {
+				drain();
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION);
+				header.putInt(width).putInt(height).putInt(depth);
+				header.putLong(count);
+				header.putDouble(threshold1).putDouble(threshold2);
+				header.putDouble(mean1).putDouble(mean2);
+				header.putDouble(max1).putDouble(max2);
+				header.flip();
+				long position = 0;
+				while (header.hasRemaining())
+					position += channel.write(header, position);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns a read-only float view of count values starting at value index from
+	 */
+	FloatBuffer map(long from, int count) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, HEADER + from * 4, (long) count * 4)
+				.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+	}
+
+	/**
+	 * Loads all nMDPs of a file opened for reading
+	 */
+	float[] values() throws IOException {
+		if (count > Integer.MAX_VALUE - 8)
+			throw new IOException("Too many nMDPs to load at once: " + count);
+		float[] values = new float[(int) count];
+		for (long from = 0; from < count; from += WINDOW) {
+			int n = (int) Math.min(WINDOW, count - from);
+			map(from, n).get(values, (int) from, n);
+		}
+		return values;
+	}
+
+	/**
+	 * Writes all nMDPs of a file opened for reading as text, one value per line
+	 */
+	void toText(PrintWriter writer) throws IOException {
+		for (long from = 0; from < count; from += WINDOW) {
+			int n = (int) Math.min(WINDOW, count - from);
+			FloatBuffer values = map(from, n);
+			for (int i = 0; i < n; i++)
+				writer.println(values.get(i));
+		}
+	}
+
+	/**
+	 * Converts binary nMDP files to text: NMDPFile input.nmdp [output.txt]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: NMDPFile input" + EXTENSION + " [output.txt]");
+			System.exit(1);
+		}
+		String output = args.length > 1 ? args[1] : args[0].replaceFirst("\\" + EXTENSION + "$", "") + ".txt";
+		NMDPFile file = open(args[0]);
+		try {
+			PrintWriter writer = new PrintWriter(new BufferedOutputStream(new FileOutputStream(output)));
+			file.toText(writer);
+			writer.close();
+		} finally {
+			file.close();
+		}
+	}
+}
\ No newline at end of file
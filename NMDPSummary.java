@@ -0,0 +1,140 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size summary of the nMDP distribution: count, mean, standard
+ * deviation, extremes and a fine-bin histogram over [-1, 1], from which
+ * percentiles are interpolated (within one bin width, 2 / BINS). Memory use
+ * does not depend on the number of nMDPs, so the summary can be kept when
+ * nMDPs themselves are not saved.
+ */
+public final class NMDPSummary {
+	public static final int BINS = 2000; // the number of histogram bins over [-1, 1]
+	public static final double[] PERCENTILES = { 1, 5, 25, 50, 75, 95, 99 }; // percentiles reported by lines()
+
+	public long count; // the number of nMDPs
+	public long positive; // the number of positive nMDPs
+	public double sum; // sum of nMDPs
+	public double sum2; // sum of squared nMDPs
+	public double min = Double.POSITIVE_INFINITY; // the lowest nMDP
+	public double max = Double.NEGATIVE_INFINITY; // the highest nMDP
+	public final long[] histogram = new long[BINS]; // the number of nMDPs in each bin
+
+	/**
+	 * Adds a single nMDP
+	 */
+	void add(double nMDP) {
+		count++;
+		if (nMDP > 0)
+			positive++;
+		sum += nMDP;
+		sum2 += nMDP * nMDP;
+		if (nMDP < min)
+			min = nMDP;
+		if (nMDP > max)
+			max = nMDP;
+		histogram[bin(nMDP)]++;
+	}
+
+	/**
+	 * Adds n equal nMDPs (e.g. of one intensity pair of a joint histogram)
+	 */
+	void add(double nMDP, long n) {
+		count += n;
+		if (nMDP > 0)
+			positive += n;
+		sum += nMDP * n;
+		sum2 += nMDP * nMDP * n;
+		if (nMDP < min)
+			min = nMDP;
+		if (nMDP > max)
+			max = nMDP;
+		histogram[bin(nMDP)] += n;
+	}
+
+	/**
+	 * Adds all nMDPs of another summary
+	 */
+	void add(NMDPSummary summary) {
+		count += summary.count;
+		positive += summary.positive;
+		sum += summary.sum;
+		sum2 += summary.sum2;
+		min = Math.min(min, summary.min);
+		max = Math.max(max, summary.max);
+		for (int i = 0; i < BINS; i++)
+			histogram[i] += summary.histogram[i];
+	}
+
+	private static int bin(double nMDP) {
+		int bin = (int) ((nMDP + 1) / 2 * BINS);
+		return bin < 0 ? 0 : bin >= BINS ? BINS - 1 : bin;
+	}
+
+	public double mean() {
+		return sum / count;
+	}
+
+	public double standardDeviation() {
+		if (count < 2)
+			return 0;
+		double variance = (sum2 - sum * sum / count) / (count - 1);
+		return variance > 0 ? Math.sqrt(variance) : 0;
+	}
+
+	/**
+	 * Returns the q-th quantile (0 <= q <= 1) interpolated within histogram bins
+	 */
+	public double quantile(double q) {
+		if (count == 0)
+			return Double.NaN;
+		double rank = q * count;
+		long below = 0;
+		for (int i = 0; i < BINS; i++) {
+			if (histogram[i] > 0 && below + histogram[i] >= rank) {
+				double fraction = (rank - below) / histogram[i];
+				double quantile = -1 + (i + fraction) * 2.0 / BINS;
+				return Math.max(min, Math.min(max, quantile));
+			}
+			below += histogram[i];
+		}
+		return max;
+	}
+
+	/**
+	 * Returns summary statistics as tab-separated name and value lines
+	 */
+	public String[] lines() {
+		String[] lines = new String[7 + PERCENTILES.length];
+		int n = 0;
+		lines[n++] = "Count\t" + count;
+		lines[n++] = "Positive\t" + positive;
+		lines[n++] = "Icorr\t" + ((double) positive / count);
+		lines[n++] = "Mean\t" + mean();
+		lines[n++] = "SD\t" + standardDeviation();
+		lines[n++] = "Min\t" + min;
+		lines[n++] = "Max\t" + max;
+		for (double percentile : PERCENTILES)
+			lines[n++] = (percentile == 50 ? "Median" : "P" + (int) percentile) + "\t" + quantile(percentile / 100);
+		return lines;
+	}
+
+	/**
+	 * Writes summary statistics followed by the histogram (bin start, bin end,
+	 * count)
+	 */
+	void write(PrintWriter writer) {
+		for (String line : lines())
+			writer.println(line);
+		writer.println();
+		writer.println("Bin start\tBin end\tCount");
+		for (int i = 0; i < BINS; i++)
+			writer.println((-1 + i * 2.0 / BINS) + "\t" + (-1 + (i + 1) * 2.0 / BINS) + "\t" + histogram[i]);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,296 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import ij.ImageStack;
+
+/**
+ * Significance of Icorr: Icorr of resamples in which the square blocks of each
+ * plane of image 2 are moved to random positions, so that the pixels of image 1
+ * meet pixels of image 2 they are not related to. Blocks are either scrambled
+ * (a random permutation, as in the Costes test) or drawn with replacement
+ * (bootstrap). Blocks keep the spatial correlation within image 2 if they are
+ * about the size of the point spread function. Pixels of the right and bottom
+ * margins that do not fill a whole block stay in place.
+ *
+ * The ROI, the means and Icorr of each resample are calculated like those of
+ * the images (a resample needs two passes), but no nMDPs or colormaps are
+ * kept: nMDP is positive exactly when both deviations from the means have the
+ * same sign. Each plane is read once per pass and the resamples are split
+ * between threads; the inner loop allocates nothing. Resamples are generated
+ * from the seed, so the result does not depend on the number of threads.
+ *
+ * The p-value is the fraction of resamples with Icorr equal to or above Icorr
+ * of the images (counting the images as one of them), and the interval holds
+ * the central 95% of Icorr of the resamples (Icorr expected by chance).
+ */
+public final class SignificanceTest {
+	public static final String[] METHODS = { "None", "Block scrambling", "Bootstrap" };
+	static final double LEVEL = 0.95; // the confidence level of the interval
+
+	public String method; // one of METHODS
+	public int resamples; // the number of resamples
+	public int block; // edge of the blocks in pixels
+	public double Icorr; // Icorr of the images
+	public double[] Icorrs; // Icorr of each resample (NaN if its ROI is empty)
+	public double chance; // mean Icorr of the resamples
+	public double lower; // the lower bound of the central 95% of Icorr of the resamples
+	public double upper; // the upper bound of the central 95% of Icorr of the resamples
+	public double pvalue; // the probability of Icorr at least as high by chance
+
+	/**
+	 * Resamples image 2 against image 1 with the thresholds of kernel (the number
+	 * of threads and the progress of kernel are used too)
+	 */
+	static SignificanceTest test(ImageStack stack1, ImageStack stack2, double Icorr, String method, int resamples,
+			int block, long seed, ColocalizationKernel kernel) throws ColocalizationException {
+		int width = stack1.getWidth();
+		int height = stack1.getHeight();
+		int depth = stack1.getSize();
+		if (resamples < 1)
+			throw new ColocalizationException("The number of resamples has to be positive");
+		if (block < 1 || (width / block) * (height / block) < 2)
+			throw new ColocalizationException("The images are too small for blocks of " + block + " pixels");
+		SignificanceTest test = new SignificanceTest();
+		test.method = method;
+		test.resamples = resamples;
+		test.block = block;
+		test.Icorr = Icorr;
+		boolean bootstrap = method.equals(METHODS[2]);
+		long[][] stats = new long[resamples][ColocalizationKernel.STATISTICS]; // sums and count of each ROI
+		long[] positive = new long[resamples]; // positive nMDPs of each resample
+		double[] means1 = new double[resamples];
+		double[] means2 = new double[resamples];
+		ColocalizationEngine.Progress progress = kernel.progress;
+		for (int pass = 0; pass < 2; pass++) {
+			for (int plane = 1; plane <= depth; plane++) {
+				int[] values1 = values(stack1, plane);
+				int[] values2 = values(stack2, plane);
+				List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+				int chunk = Math.max(1, resamples / (4 * Math.max(1, kernel.threads)));
+				for (int from = 0; from < resamples; from += chunk)
+					tasks.add(new Resampler(kernel, values1, values2, width, height, block, bootstrap, seed, plane,
+							from, Math.min(resamples, from + chunk), pass == 0 ? null : means1, means2));
+				final int current = pass;
+				final long[][] sums = stats;
+				final long[] counts = positive;
+				kernel.progress = ColocalizationEngine.SILENT;
+				kernel.run(tasks, new Consumer<long[]>() {
+					public void accept(long[] partial) { // {from, to, values of the resamples}
+						int from = (int) partial[0];
+						for (int r = from; r < partial[1]; r++)
+							if (current == 0) {
+								sums[r][ColocalizationKernel.SUM1] += partial[2 + 3 * (r - from)];
+								sums[r][ColocalizationKernel.SUM2] += partial[3 + 3 * (r - from)];
+								sums[r][ColocalizationKernel.COUNT] += partial[4 + 3 * (r - from)];
+							} else
+								counts[r] += partial[2 + r - from];
+					}
+				});
+				kernel.progress = progress;
+				progress.progress(pass * depth + plane, 2 * depth); // Reports planes done
+			}
+			if (pass == 0)
+				for (int r = 0; r < resamples; r++) {
+					means1[r] = (double) stats[r][ColocalizationKernel.SUM1] / stats[r][ColocalizationKernel.COUNT];
+					means2[r] = (double) stats[r][ColocalizationKernel.SUM2] / stats[r][ColocalizationKernel.COUNT];
+				}
+		}
+		test.Icorrs = new double[resamples];
+		for (int r = 0; r < resamples; r++)
+			test.Icorrs[r] = stats[r][ColocalizationKernel.COUNT] > 0
+					? (double) positive[r] / stats[r][ColocalizationKernel.COUNT]
+					: Double.NaN;
+		test.summarize();
+		return test;
+	}
+
+	// Calculates the p-value and the interval from Icorr of the resamples
+	private void summarize() {
+		double[] sorted = new double[Icorrs.length];
+		int n = 0;
+		long above = 0; // resamples with Icorr equal to or above Icorr of the images
+		double sum = 0;
+		for (double value : Icorrs)
+			if (!Double.isNaN(value)) {
+				sorted[n++] = value;
+				sum += value;
+				if (value >= Icorr)
+					above++;
+			}
+		sorted = Arrays.copyOf(sorted, n);
+		Arrays.sort(sorted);
+		chance = n > 0 ? sum / n : Double.NaN;
+		lower = n > 0 ? sorted[(int) Math.round((1 - LEVEL) / 2 * (n - 1))] : Double.NaN;
+		upper = n > 0 ? sorted[(int) Math.round((1 + LEVEL) / 2 * (n - 1))] : Double.NaN;
+		pvalue = (above + 1.0) / (n + 1.0);
+	}
+
+	// Returns unsigned pixel values of a plane of an 8-bit or 16-bit stack
+	private static int[] values(ImageStack stack, int plane) {
+		Object pixels = stack.getProcessor(plane).getPixels();
+		int[] values;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			values = new int[bytes.length];
+			for (int i = 0; i < bytes.length; i++)
+				values[i] = bytes[i] & 0xff;
+		} else {
+			short[] shorts = (short[]) pixels;
+			values = new int[shorts.length];
+			for (int i = 0; i < shorts.length; i++)
+				values[i] = shorts[i] & 0xffff;
+		}
+		return values;
+	}
+
+	/**
+	 * Returns results as tab-separated name and value lines
+	 */
+	public String[] lines() {
+		return new String[] { "Method\t" + method, "Resamples\t" + resamples, "Block size\t" + block,
+				"Icorr\t" + Icorr, "Chance Icorr\t" + chance, "Chance 95% lower\t" + lower,
+				"Chance 95% upper\t" + upper, "p-value\t" + pvalue };
+	}
+
+	/**
+	 * Writes results followed by Icorr of each resample
+	 */
+	void write(PrintWriter writer) {
+		for (String line : lines())
+			writer.println(line);
+		writer.println();
+		writer.println("Resample\tIcorr");
+		for (int r = 0; r < Icorrs.length; r++)
+			writer.println((r + 1) + "\t" + Icorrs[r]);
+	}
+
+	/**
+	 * Goes through a plane for a range of resamples. The first pass returns sums
+	 * and counts of the ROI of each resample, the second pass (with the means of
+	 * the resamples) the number of positive nMDPs.
+	 */
+	private static final class Resampler implements Callable<long[]> {
+		private final ColocalizationKernel kernel;
+		private final int[] values1, values2; // pixels of the plane
+		private final int width, height, block;
+		private final boolean bootstrap; // blocks are drawn with replacement
+		private final long seed;
+		private final int plane, from, to; // the plane and the range of resamples
+		private final double[] means1, means2; // means of the resamples (null in the first pass)
+
+		Resampler(ColocalizationKernel kernel, int[] values1, int[] values2, int width, int height, int block,
+				boolean bootstrap, long seed, int plane, int from, int to, double[] means1, double[] means2) {
+			this.kernel = kernel;
+			this.values1 = values1;
+			this.values2 = values2;
+			this.width = width;
+			this.height = height;
+			this.block = block;
+			this.bootstrap = bootstrap;
+			this.seed = seed;
+			this.plane = plane;
+			this.from = from;
+			this.to = to;
+			this.means1 = means1;
+			this.means2 = means2;
+		}
+
+		public long[] call() {
+			int columns = width / block;
+			int rows = height / block;
+			int[] blocks = new int[columns * rows]; // the source block of each block
+			long[] result = new long[2 + (to - from) * (means1 == null ? 3 : 1)];
+			result[0] = from;
+			result[1] = to;
+			double threshold1 = kernel.threshold1, threshold2 = kernel.threshold2;
+			for (int r = from; r < to; r++) {
+				shuffle(blocks, r);
+				long sum1 = 0, sum2 = 0, count = 0, positive = 0;
+				double mean1 = means1 != null ? means1[r] : 0, mean2 = means2 != null ? means2[r] : 0;
+				for (int target = 0; target < blocks.length + 1; target++) {
+					// Moved blocks, then the margins (a row band and a column band) in place
+					int x1, y1, x2, y2, w, h;
+					if (target < blocks.length) {
+						x1 = (target % columns) * block;
+						y1 = (target / columns) * block;
+						x2 = (blocks[target] % columns) * block;
+						y2 = (blocks[target] / columns) * block;
+						w = h = block;
+					} else {
+						x1 = x2 = 0;
+						y1 = y2 = rows * block;
+						w = width;
+						h = height - rows * block;
+					}
+					for (int part = 0; part < (target < blocks.length ? 1 : 2); part++) {
+						if (part == 1) { // The right margin above the bottom margin
+							x1 = x2 = columns * block;
+							y1 = y2 = 0;
+							w = width - columns * block;
+							h = rows * block;
+						}
+						for (int y = 0; y < h; y++) {
+							int i1 = (y1 + y) * width + x1;
+							int i2 = (y2 + y) * width + x2;
+							for (int x = 0; x < w; x++) {
+								int value1 = values1[i1 + x];
+								int value2 = values2[i2 + x];
+								if (value1 >= threshold1 || value2 >= threshold2) { // Only pixels in the ROI are taken into account
+									if (means1 == null) {
+										sum1 += value1;
+										sum2 += value2;
+										count++;
+									} else if ((value1 - mean1) * (value2 - mean2) > 0)
+										positive++;
+								}
+							}
+						}
+					}
+				}
+				if (means1 == null) {
+					result[2 + 3 * (r - from)] = sum1;
+					result[3 + 3 * (r - from)] = sum2;
+					result[4 + 3 * (r - from)] = count;
+				} else
+					result[2 + r - from] = positive;
+			}
+			return result;
+		}
+
+		// Fills blocks with the source blocks of resample r in this plane: a random
+		// permutation or random blocks drawn with replacement
+		private void shuffle(int[] blocks, int r) {
+			long state = seed ^ (r * 0x9E3779B97F4A7C15L) ^ (plane * 0xC2B2AE3D27D4EB4FL);
+			for (int i = 0; i < blocks.length; i++)
+				blocks[i] = i;
+			for (int i = blocks.length - 1; i >= 0; i--) {
+				state += 0x9E3779B97F4A7C15L;
+				int j = (int) (((mix(state) >>> 32) * (bootstrap ? blocks.length : i + 1)) >>> 32);
+				if (bootstrap)
+					blocks[i] = j;
+				else {
+					int swap = blocks[i];
+					blocks[i] = blocks[j];
+					blocks[j] = swap;
+				}
+			}
+		}
+
+		// SplitMix64 output function
+		private static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.AutoThresholder;
+
+/**
+ * Autothreshold of a whole stack calculated from its intensity histogram. Gives
+ * the same lower threshold as IJ.setAutoThreshold(image, "Default dark stack")
+ * followed by getMinThreshold(), but the histogram can be collected in the scan
+ * that also gathers the ROI statistics, so the stack is not read again.
+ */
+final class StackThreshold {
+	static final String METHOD = "Default dark stack"; // default ImageJ method (variation of IsoData algorithm)
+
+	/**
+	 * Returns true if the threshold of image can be calculated from its histogram.
+	 * Otherwise (selections, calibrated 16-bit images) IJ.setAutoThreshold has to
+	 * be used.
+	 */
+	static boolean supported(ImagePlus image) {
+		if (image.getRoi() != null)
+			return false;
+		if (image.getBitDepth() == 8)
+			return true;
+		return image.getBitDepth() == 16 && !image.getCalibration().calibrated();
+	}
+
+	/**
+	 * Calculates the lower autothreshold of image from the histogram of all its
+	 * pixels (256 bins for 8-bit and 65536 bins for 16-bit images)
+	 */
+	static double threshold(ImagePlus image, long[] histogram) {
+		return threshold(image.getBitDepth(), image.getProcessor().isInvertedLut(), histogram);
+	}
+
+	/**
+	 * Calculates the lower autothreshold of an image of the given bit depth (8 or
+	 * 16) and LUT from the histogram of all its pixels
+	 */
+	static double threshold(int bitDepth, boolean invertedLut, long[] histogram) {
+		double min = 0.0, max = 255.0;
+		int[] bins = new int[256];
+		if (bitDepth == 8)
+			copy(histogram, bins);
+		else {
+			// Bins 16-bit histogram between its minimum and maximum like StackStatistics
+			int lowest = 0;
+			while (histogram[lowest] == 0 && lowest < 65535)
+				lowest++;
+			int highest = 65535;
+			while (histogram[highest] == 0 && highest > 0)
+				highest--;
+			min = lowest;
+			max = highest;
+			double scale = 1.0 / ((max - min) / 256);
+			long[] binned = new long[256];
+			for (int i = lowest; i <= highest; i++) {
+				int index = (int) (scale * (i - lowest));
+				if (index >= 256)
+					index = 255;
+				binned[index] += histogram[i];
+			}
+			copy(binned, bins);
+		}
+		int threshold = new AutoThresholder().getThreshold(METHOD, bins);
+		double lower = invertedLut ? 0.0 : threshold + 1;
+		if (lower > 255)
+			lower = 255;
+		if (max > min)
+			lower = min + (lower / 255.0) * (max - min);
+		else
+			lower = min;
+		if (bitDepth == 16) // 16-bit thresholds are rounded by ShortProcessor.setThreshold
+			lower = Math.round(Math.max(lower, 0.0));
+		return lower;
+	}
+
+	/**
+	 * Calculates the lower autothreshold of image using IJ.setAutoThreshold
+	 */
+	static double threshold(ImagePlus image) {
+		IJ.setAutoThreshold(image, METHOD);
+		double threshold = image.getProcessor().getMinThreshold();
+		IJ.resetThreshold(image);
+		return threshold;
+	}
+
+	private static void copy(long[] histogram, int[] bins) {
+		for (int i = 0; i < bins.length; i++)
+			bins[i] = histogram[i] <= Integer.MAX_VALUE ? (int) histogram[i] : Integer.MAX_VALUE;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,261 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.awt.AWTEvent;
+import java.awt.Checkbox;
+import java.awt.Choice;
+import java.awt.Label;
+import java.awt.TextField;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Live preview of the Colocalization_ dialog: while manual thresholds are
+ * adjusted, Icorr and the RGB colormap of the current slice are recalculated
+ * for the selected channels. All calculations run in the background, so the
+ * dialog stays responsive. The joint histogram of the current slice does not
+ * depend on the thresholds: it is built once, even while thresholds change,
+ * and kept until another slice or pair of images is previewed, so Icorr of
+ * new thresholds takes one pass over the histogram. The colormap is first
+ * calculated from every LEVEL-th pixel of every LEVEL-th row and shown
+ * enlarged, and then at full resolution. Each change starts a new generation;
+ * calculations of older generations stop at the next band of rows. The
+ * means and maxima are those of the slice, so Icorr of the whole stack
+ * (calculated after OK) may differ.
+ */
+final class ThresholdPreview implements DialogListener {
+	static final int LEVEL = 4; // the step between pixels of the downsampled colormap
+	static final String TITLE = "Colocalization preview"; // the title of the preview image
+
+	private final int[] ids; // IDs of the images listed by the channel choices
+	private final Choice channel1, channel2; // the channel choices
+	private final TextField threshold1, threshold2; // the threshold fields
+	private final Checkbox autothreshold, enabled; // 'Autothreshold' and 'Live preview' checkboxes
+	private final Label message; // shows Icorr of the slice
+	private final AtomicLong generation = new AtomicLong(); // the generation of the latest change
+	private final ExecutorService refinement = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Colocalization preview");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}); // calculates Icorr and colormaps of the changes
+	private ImagePlus preview; // the preview image (null until the first preview)
+	private String key; // image IDs and slice of the cached joint histogram (null if none)
+	private JointHistogram histogram; // the cached joint histogram (null if it overflowed)
+
+	ThresholdPreview(int[] ids, Choice channel1, Choice channel2, TextField threshold1, TextField threshold2,
+			Checkbox autothreshold, Checkbox enabled, Label message) {
+		this.ids = ids;
+		this.channel1 = channel1;
+		this.channel2 = channel2;
+		this.threshold1 = threshold1;
+		this.threshold2 = threshold2;
+		this.autothreshold = autothreshold;
+		this.enabled = enabled;
+		this.message = message;
+	}
+
+	public boolean dialogItemChanged(GenericDialog dialog, AWTEvent event) {
+		final long current = generation.incrementAndGet(); // Calculations of earlier changes are stale
+		if (enabled.getState() == false)
+			return true;
+		if (autothreshold.getState() == true) {
+			message.setText("Preview needs manual thresholds");
+			return true;
+		}
+		final ImagePlus image1 = WindowManager.getImage(ids[channel1.getSelectedIndex()]);
+		final ImagePlus image2 = WindowManager.getImage(ids[channel2.getSelectedIndex()]);
+		final double t1, t2;
+		try {
+			t1 = Double.parseDouble(threshold1.getText().trim());
+			t2 = Double.parseDouble(threshold2.getText().trim());
+		} catch (NumberFormatException e) {
+			return true; // Thresholds are being typed
+		}
+		if (image1 == null || image2 == null || image1.getBitDepth() > 16 || image1.getBitDepth() != image2.getBitDepth()
+				|| image1.getWidth() != image2.getWidth() || image1.getHeight() != image2.getHeight()
+				|| image1.getStackSize() != image2.getStackSize()) {
+			message.setText("No preview for these images");
+			return true;
+		}
+		final int slice = image1.getCurrentSlice();
+		message.setText("Slice " + slice + ": Icorr ...");
+		refinement.submit(new Runnable() {
+			public void run() {
+				preview(image1, image2, slice, t1, t2, current);
+			}
+		});
+		return true;
+	}
+
+	// Calculates Icorr and the colormaps of a slice unless a newer change is made
+	private void preview(ImagePlus image1, ImagePlus image2, int slice, double t1, double t2, long current) {
+		if (generation.get() != current)
+			return;
+		ImageProcessor processor1 = image1.getStack().getProcessor(slice); // Read from disk for virtual stacks
+		ImageProcessor processor2 = image2.getStack().getProcessor(slice);
+		// Statistics and Icorr of the slice from its joint histogram
+		JointHistogram histogram = histogram(image1.getID() + "," + image2.getID() + "," + slice, processor1,
+				processor2);
+		if (generation.get() != current)
+			return;
+		long[] stats;
+		if (histogram != null)
+			stats = histogram.statistics(t1, t2);
+		else {
+			stats = new long[ColocalizationKernel.STATISTICS];
+			ColocalizationKernel kernel = new ColocalizationKernel(t1, t2);
+			for (int from = 0; from < processor1.getPixelCount(); from += ColocalizationKernel.BAND) {
+				if (generation.get() != current)
+					return;
+				kernel.statistics(processor1, processor2, from,
+						Math.min(processor1.getPixelCount(), from + ColocalizationKernel.BAND), stats);
+			}
+		}
+		long count = stats[ColocalizationKernel.COUNT];
+		double mean1 = (double) stats[ColocalizationKernel.SUM1] / count;
+		double mean2 = (double) stats[ColocalizationKernel.SUM2] / count;
+		if (count == 0 || stats[ColocalizationKernel.MAX1] == mean1 || stats[ColocalizationKernel.MAX2] == mean2) {
+			message.setText("Slice " + slice + ": no Icorr for these thresholds");
+			return;
+		}
+		ColocalizationKernel kernel = new ColocalizationKernel(t1, t2);
+		kernel.setStatistics(mean1, mean2, stats[ColocalizationKernel.MAX1], stats[ColocalizationKernel.MAX2],
+				JetColormap.JET);
+		String text = "Slice " + slice + ": Icorr ";
+		if (histogram != null)
+			message.setText(text + String.format("%.4f", (double) histogram.positive(kernel) / count));
+		else
+			message.setText(text + "...");
+		// Downsampled colormap first, then the full resolution colormap
+		show(downsampled(kernel, processor1, processor2), processor1.getWidth(), processor1.getHeight(), current);
+		long[] counts = new long[ColocalizationKernel.COUNTS];
+		int[] pixels = colormap(kernel, processor1, processor2, current, counts);
+		if (pixels == null)
+			return; // A newer change is being calculated
+		show(pixels, processor1.getWidth(), processor1.getHeight(), current);
+		if (histogram == null)
+			message.setText(text + String.format("%.4f",
+					(double) counts[ColocalizationKernel.POSITIVE] / counts[ColocalizationKernel.ALL]));
+	}
+
+	/**
+	 * Returns the joint histogram of all pixels of a slice, or null if it has too
+	 * many distinct intensity pairs or the preview is closed while it is built.
+	 * Newer changes do not stop the build. Only the histogram of the last slice
+	 * is kept.
+	 */
+	private JointHistogram histogram(String key, ImageProcessor processor1, ImageProcessor processor2) {
+		synchronized (this) {
+			if (key.equals(this.key))
+				return histogram;
+		}
+		JointHistogram histogram = new JointHistogram(processor1 instanceof ByteProcessor, Double.NEGATIVE_INFINITY,
+				Double.NEGATIVE_INFINITY);
+		for (int from = 0; from < processor1.getPixelCount() && !histogram.overflow(); from += ColocalizationKernel.BAND) {
+			if (Thread.currentThread().isInterrupted() == true)
+				return null; // Closed
+			histogram.add(processor1, processor2, from,
+					Math.min(processor1.getPixelCount(), from + ColocalizationKernel.BAND));
+		}
+		if (histogram.overflow())
+			histogram = null;
+		synchronized (this) {
+			if (refinement.isShutdown() == true)
+				return null; // Not kept after close()
+			this.key = key;
+			this.histogram = histogram;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the RGB colormap of every LEVEL-th pixel of every LEVEL-th row,
+	 * enlarged to the size of the slice
+	 */
+	static int[] downsampled(ColocalizationKernel kernel, ImageProcessor processor1, ImageProcessor processor2) {
+		int width = processor1.getWidth();
+		int height = processor1.getHeight();
+		int columns = (width + LEVEL - 1) / LEVEL;
+		int rows = (height + LEVEL - 1) / LEVEL;
+		ImageProcessor small1 = sample(processor1, columns, rows);
+		ImageProcessor small2 = sample(processor2, columns, rows);
+		int[] small = new int[columns * rows];
+		kernel.colormap(small1, small2, 0, small.length, small, null, null, new long[ColocalizationKernel.COUNTS]);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				pixels[y * width + x] = small[(y / LEVEL) * columns + x / LEVEL];
+		return pixels;
+	}
+
+	// Returns every LEVEL-th pixel of every LEVEL-th row of an 8-bit or 16-bit processor
+	private static ImageProcessor sample(ImageProcessor processor, int columns, int rows) {
+		ImageProcessor small = processor instanceof ByteProcessor ? new ByteProcessor(columns, rows)
+				: new ShortProcessor(columns, rows);
+		for (int y = 0; y < rows; y++)
+			for (int x = 0; x < columns; x++)
+				small.set(x, y, processor.get(x * LEVEL, y * LEVEL));
+		return small;
+	}
+
+	/**
+	 * Returns the full resolution RGB colormap of a slice and adds the number of
+	 * positive and of all nMDPs to counts, or returns null as soon as a change
+	 * newer than the given generation is made
+	 */
+	int[] colormap(ColocalizationKernel kernel, ImageProcessor processor1, ImageProcessor processor2, long current,
+			long[] counts) {
+		int[] pixels = new int[processor1.getPixelCount()];
+		for (int from = 0; from < pixels.length; from += ColocalizationKernel.BAND) {
+			if (generation.get() != current)
+				return null;
+			kernel.colormap(processor1, processor2, from, Math.min(pixels.length, from + ColocalizationKernel.BAND),
+					pixels, null, null, counts);
+		}
+		return generation.get() == current ? pixels : null;
+	}
+
+	// Shows colormap pixels in the preview image unless a newer change has been made
+	private synchronized void show(int[] pixels, int width, int height, long current) {
+		if (generation.get() != current)
+			return;
+		ColorProcessor processor = new ColorProcessor(width, height, pixels);
+		if (preview == null || preview.getWindow() == null) {
+			preview = new ImagePlus(TITLE, processor);
+			preview.show();
+		} else {
+			preview.setProcessor(processor);
+			preview.updateAndDraw();
+		}
+	}
+
+	/**
+	 * Stops calculations, releases the joint histogram and closes the preview
+	 * image
+	 */
+	synchronized void close() {
+		generation.incrementAndGet();
+		refinement.shutdownNow();
+		key = null;
+		histogram = null;
+		if (preview != null)
+			preview.close();
+		preview = null;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,153 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+/**
+ * Uncompressed 8-bit or 16-bit grayscale TIFF image (or stack) read in strips of
+ * rows straight from the file, so that planes larger than the heap can be
+ * processed. The file is memory-mapped, so a strip is copied once from the page
+ * cache into its pixels (positional reads are used if the file can not be
+ * mapped). Strips can be read by several threads at the same time.
+ */
+final class TiffStrips implements Closeable {
+	static final long CHUNK = 1L << 30; // the file is mapped in parts starting every CHUNK bytes
+
+	final String title; // the name of the file
+	final int width; // width of the image in pixels
+	final int height; // height of the image in pixels
+	final int depth; // the number of planes
+	final int bitDepth; // 8 or 16
+	private final long[] offsets; // offset of each plane in the file
+	private final ByteOrder order; // byte order of 16-bit pixels
+	private final FileChannel channel;
+	private final MappedByteBuffer[] maps; // parts of the file (null if it is not mapped)
+
+	private TiffStrips(String path, FileInfo[] info) throws IOException {
+		FileInfo fi = info[0];
+		title = new File(path).getName();
+		width = fi.width;
+		height = fi.height;
+		bitDepth = fi.fileType == FileInfo.GRAY8 ? 8 : 16;
+		order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		long size = (long) width * height * fi.getBytesPerPixel(); // size of a plane in bytes
+		if (info.length == 1) { // ImageJ stack: planes are stored one after another
+			depth = fi.nImages;
+			offsets = new long[depth];
+			for (int i = 0; i < depth; i++)
+				offsets[i] = fi.getOffset() + i * (size + fi.getGap());
+		} else {
+			depth = info.length;
+			offsets = new long[depth];
+			for (int i = 0; i < depth; i++)
+				offsets[i] = info[i].getOffset();
+		}
+		channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ);
+		maps = map(channel, (long) Math.max(ColocalizationKernel.TILE, width) * (bitDepth / 8)); // Parts overlap by the largest strip
+	}
+
+	// Maps the whole file in parts of CHUNK + overlap bytes, or returns null if it
+	// can not be mapped (e.g. the address space of a 32-bit JVM is exhausted)
+	private static MappedByteBuffer[] map(FileChannel channel, long overlap) {
+		if (CHUNK + overlap > Integer.MAX_VALUE)
+			return null; // Rows are too long to be mapped in parts
+		try {
+			long size = channel.size();
+			MappedByteBuffer[] maps = new MappedByteBuffer[(int) Math.max(1, (size + CHUNK - 1) / CHUNK)];
+			for (int i = 0; i < maps.length; i++) {
+				long start = i * CHUNK;
+				maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, CHUNK + overlap));
+			}
+			return maps;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a TIFF file, or returns null if it is not an uncompressed 8-bit or
+	 * 16-bit grayscale image with contiguous strips (it has to be opened by
+	 * ImageJ then)
+	 */
+	static TiffStrips open(String path) throws IOException {
+		String name = path.toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return null;
+		FileInfo[] info = Opener.getTiffFileInfo(path);
+		if (info == null || info.length == 0)
+			return null;
+		for (FileInfo fi : info) {
+			if (fi.compression != FileInfo.COMPRESSION_NONE || fi.whiteIsZero || fi.lutSize > 0
+					|| (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED)
+					|| fi.width != info[0].width || fi.height != info[0].height || fi.fileType != info[0].fileType)
+				return null;
+			if (fi.description != null && fi.description.contains("cf=")) // Calibrated pixel values
+				return null;
+			if (fi.stripOffsets != null && fi.stripLengths != null) {
+				long next = fi.getOffset(); // Strips have to follow each other
+				for (int i = 0; i < fi.stripOffsets.length; i++) {
+					if ((fi.stripOffsets[i] & 0xffffffffL) != (next & 0xffffffffL))
+						return null;
+					next += fi.stripLengths[i] & 0xffffffffL;
+				}
+			}
+		}
+		return new TiffStrips(path, info);
+	}
+
+	/**
+	 * Reads rows [y, y + rows) of a plane (1-based) as byte[] or short[] pixels
+	 */
+	Object read(int plane, int y, int rows) throws IOException {
+		int pixels = width * rows;
+		long position = offsets[plane - 1] + (long) y * width * (bitDepth / 8);
+		long length = (long) pixels * (bitDepth / 8);
+		int part = (int) (position / CHUNK);
+		if (maps != null && part < maps.length && position + length <= part * CHUNK + maps[part].capacity()) {
+			// Copies the strip from the mapped part (a duplicate, so that threads do not share its position)
+			ByteBuffer view = maps[part].duplicate().order(order);
+			view.position((int) (position - part * CHUNK));
+			if (bitDepth == 8) {
+				byte[] bytes = new byte[pixels];
+				view.get(bytes);
+				return bytes;
+			}
+			short[] shorts = new short[pixels];
+			view.asShortBuffer().get(shorts);
+			return shorts;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(pixels * (bitDepth / 8)).order(order);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0)
+				throw new IOException(title + " is truncated");
+		}
+		buffer.flip();
+		if (bitDepth == 8)
+			return buffer.array();
+		short[] shorts = new short[pixels];
+		buffer.asShortBuffer().get(shorts);
+		return shorts;
+	}
+
+	/**
+	 * Closes the file. Mapped parts are released by the garbage collector once
+	 * no strip is being read from them.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,300 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import ij.ImageJ;
+import ij.io.FileInfo;
+
+/**
+ * Writes a stack to an uncompressed TIFF file a plane or a strip of rows at a
+ * time, so the stack does not have to be kept in memory. Planes are RGB, 8-bit
+ * with a LUT or 32-bit float (with an optional LUT). The layout is the one used
+ * by ImageJ's TiffEncoder: the first IFD with an ImageJ description, the LUT,
+ * the planes one after another and the IFDs of the other planes at the end of
+ * the file. The number of planes has to be known in advance.
+ *
+ * Planes larger than STRIP bytes are split into strips of at most STRIP bytes.
+ * Like TiffEncoder, only the first IFD is written if the other IFDs would lie
+ * beyond 4 GB (ImageJ finds the planes from the images= count of the
+ * description). If even the strips of the first plane can not be addressed
+ * with 32-bit offsets, the file is written as a BigTIFF (which ImageJ can not
+ * open, but its planes would not fit in an ImageJ stack either).
+ */
+final class TiffWriter implements Closeable {
+	private static final int ENTRIES = 10; // the number of entries in the first IFD of an RGB file
+	static final long STRIP = 1L << 31; // the largest strip in bytes
+	private static final long LIMIT = 0xffffffffL; // the largest offset of a TIFF file
+
+	private final DataOutputStream out;
+	private final int width; // width of the planes in pixels
+	private final int height; // height of the planes in pixels
+	private final int depth; // the number of planes
+	private final int type; // FileInfo.RGB, GRAY8 or GRAY32_FLOAT
+	private final int entries; // the number of entries in the first IFD
+	private final int bps; // offset of BitsPerSample values (RGB) or 0
+	private final byte[] description; // ImageJ description (null terminated)
+	private final int descriptionoffset; // offset of the description
+	private final int lutoffset; // offset of the ColorMap values or 0
+	private final long data; // offset of the first plane
+	private final long size; // size of a plane in bytes
+	private final int rows; // rows per strip
+	private final int strips; // strips per plane
+	private final long counts; // offset of the StripByteCounts values (0 if a plane is one strip)
+	private final long offsets; // offset of the StripOffsets values of the first plane (0 if a plane is one strip)
+	private final long block; // size of the IFD of a plane after the first with its StripOffsets values
+	private final boolean big; // the file is a BigTIFF
+	private final boolean single; // only the first IFD is written
+	private final byte[] row; // bytes of a row
+	private long written; // the number of pixels written
+
+	/**
+	 * Creates an RGB TIFF file
+	 */
+	TiffWriter(String path, int width, int height, int depth) throws IOException {
+		this(path, width, height, depth, FileInfo.RGB, null, 0, 0);
+	}
+
+	/**
+	 * Creates a TIFF file of the given type (FileInfo.RGB, GRAY8 or GRAY32_FLOAT)
+	 * with an optional LUT (0xRRGGBB values, null for none) and display range of
+	 * float planes (min = max for none)
+	 */
+	TiffWriter(String path, int width, int height, int depth, int type, int[] lut, double min, double max)
+			throws IOException {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.type = type;
+		int bytes = type == FileInfo.RGB ? 3 : type == FileInfo.GRAY8 ? 1 : 4; // bytes per pixel
+		long rowbytes = (long) width * bytes;
+		if (rowbytes > STRIP)
+			throw new IOException("Rows of " + width + " pixels are too long for a TIFF file");
+		entries = ENTRIES + (lut != null ? 1 : 0) + (type == FileInfo.GRAY32_FLOAT ? 1 : 0);
+		String text = "ImageJ=" + ImageJ.VERSION + "\n" + (depth > 1 ? "images=" + depth + "\nslices=" + depth + "\n" : "")
+				+ (min < max ? "min=" + min + "\nmax=" + max + "\n" : "") + "\0";
+		description = text.getBytes("ISO-8859-1");
+		size = rowbytes * height;
+		rows = (int) Math.max(1, Math.min(height, STRIP / rowbytes));
+		strips = (height + rows - 1) / rows;
+		// Lays the file out with 32-bit offsets, or as a BigTIFF if the strips of the
+		// first plane can not be addressed with them
+		long[] layout = layout(false, lut != null);
+		if (layout[4] + (strips - 1) * rows * rowbytes > LIMIT)
+			layout = layout(true, lut != null);
+		big = layout[6] == 1;
+		bps = (int) layout[0];
+		descriptionoffset = (int) layout[1];
+		lutoffset = (int) layout[2];
+		counts = layout[3];
+		data = layout[4];
+		offsets = strips > 1 ? counts + strips * (big ? 8 : 4) : 0;
+		block = layout[5];
+		single = big == false && data + depth * size + (depth - 1) * block > LIMIT;
+		row = new byte[(int) rowbytes];
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20));
+		out.writeShort(0x4949); // "II": little-endian byte order
+		if (big) {
+			writeShort(43);
+			writeShort(8); // bytes of an offset
+			writeShort(0);
+			writeLong(16); // offset of the first IFD
+		} else {
+			writeShort(42);
+			writeInt(8); // offset of the first IFD
+		}
+		writeIFD(0, true);
+		if (bps != 0)
+			for (int i = 0; i < 3; i++)
+				writeShort(8); // BitsPerSample values
+		out.write(description);
+		if ((description.length & 1) != 0)
+			out.write(0);
+		if (lut != null) // ColorMap: all red, then all green, then all blue values (16-bit)
+			for (int shift = 16; shift >= 0; shift -= 8)
+				for (int i = 0; i < 256; i++)
+					writeShort(((lut[i] >> shift) & 0xff) << 8);
+		writeStrips(0);
+	}
+
+	// Returns offsets of the BitsPerSample values (0 if they are in the IFD), the
+	// description, the LUT (0 for none), the StripByteCounts values (0 if a plane
+	// is one strip) and the first plane, the size of the IFD of a plane after the
+	// first with its StripOffsets values and 1 for a BigTIFF
+	private long[] layout(boolean big, boolean lut) {
+		long offset = big ? 16 + 8 + 20 * entries + 8 : 8 + 2 + 12 * entries + 4; // the end of the first IFD
+		long bps = type == FileInfo.RGB && big == false ? offset : 0; // 3 values fit in a BigTIFF entry
+		if (bps != 0)
+			offset += 6;
+		long descriptionoffset = offset;
+		offset += description.length + (description.length & 1);
+		long lutoffset = lut ? offset : 0;
+		if (lut)
+			offset += 3 * 256 * 2;
+		long counts = strips > 1 ? offset : 0;
+		if (strips > 1)
+			offset += 2 * strips * (big ? 8 : 4); // StripByteCounts and StripOffsets of the first plane
+		long block = (big ? 8 + 20 * (entries - 1) + 8 : 2 + 12 * (entries - 1) + 4)
+				+ (strips > 1 ? strips * (big ? 8 : 4) : 0);
+		return new long[] { bps, descriptionoffset, lutoffset, counts, offset, block, big ? 1 : 0 };
+	}
+
+	// Writes the StripByteCounts values and the StripOffsets values of the first
+	// plane after the header, or the StripOffsets values of another plane after its
+	// IFD (nothing if a plane is one strip)
+	private void writeStrips(int plane) throws IOException {
+		if (strips == 1)
+			return;
+		long strip = rows * (size / height); // bytes of a whole strip
+		if (plane == 0)
+			for (int i = 0; i < strips; i++)
+				writeOffset(Math.min(strip, size - i * strip));
+		for (int i = 0; i < strips; i++)
+			writeOffset(data + plane * size + i * strip);
+	}
+
+	/**
+	 * Appends whole rows of pixels (a plane or a strip of a plane): int[]
+	 * 0xRRGGBB, byte[] or float[] values, depending on the type of the file
+	 */
+	void write(Object pixels) throws IOException {
+		int length = Array.getLength(pixels);
+		if (length % width != 0 || written + length > (long) width * height * depth)
+			throw new IOException("Pixels do not fit the planes of the TIFF file");
+		for (int i = 0; i < length;) {
+			if (type == FileInfo.RGB) {
+				int[] rgb = (int[]) pixels;
+				for (int x = 0, j = 0; x < width; x++, i++) {
+					int pixel = rgb[i];
+					row[j++] = (byte) (pixel >> 16);
+					row[j++] = (byte) (pixel >> 8);
+					row[j++] = (byte) pixel;
+				}
+			} else if (type == FileInfo.GRAY8) {
+				System.arraycopy((byte[]) pixels, i, row, 0, width);
+				i += width;
+			} else {
+				float[] values = (float[]) pixels;
+				for (int x = 0, j = 0; x < width; x++, i++) {
+					int bits = Float.floatToRawIntBits(values[i]);
+					row[j++] = (byte) bits;
+					row[j++] = (byte) (bits >> 8);
+					row[j++] = (byte) (bits >> 16);
+					row[j++] = (byte) (bits >> 24);
+				}
+			}
+			out.write(row);
+		}
+		written += length;
+	}
+
+	/**
+	 * Writes the IFDs of the remaining planes and closes the file. The file is
+	 * incomplete if fewer pixels than expected were written.
+	 */
+	public void close() throws IOException {
+		try {
+			if (written == (long) width * height * depth && single == false)
+				for (int i = 1; i < depth; i++) {
+					writeIFD(i, false);
+					writeStrips(i);
+				}
+		} finally {
+			out.close();
+		}
+	}
+
+	// Writes the IFD of a plane (entries sorted by tag)
+	private void writeIFD(int plane, boolean first) throws IOException {
+		int n = first ? entries : entries - 1; // the number of entries
+		long position = first ? (big ? 16 : 8) : data + depth * size + (plane - 1) * block; // offset of the IFD
+		if (big)
+			writeLong(n);
+		else
+			writeShort(n);
+		int offsettype = big ? 16 : 4; // LONG8 or LONG
+		writeEntry(254, 4, 1, 0); // NewSubfileType
+		writeEntry(256, 4, 1, width); // ImageWidth
+		writeEntry(257, 4, 1, height); // ImageLength
+		if (type == FileInfo.RGB && big) { // BitsPerSample values in the entry
+			writeShort(258);
+			writeShort(3);
+			writeLong(3);
+			for (int i = 0; i < 3; i++)
+				writeShort(8);
+			writeShort(0);
+		} else if (type == FileInfo.RGB)
+			writeEntry(258, 3, 3, bps); // BitsPerSample
+		else
+			writeEntry(258, 3, 1, type == FileInfo.GRAY8 ? 8 : 32);
+		writeEntry(262, 3, 1, type == FileInfo.RGB ? 2 : lutoffset != 0 && type == FileInfo.GRAY8 ? 3 : 1); // PhotometricInterpretation
+		if (first)
+			writeEntry(270, 2, description.length, descriptionoffset); // ImageDescription
+		if (strips == 1)
+			writeEntry(273, offsettype, 1, data + plane * size); // StripOffsets
+		else
+			writeEntry(273, offsettype, strips, first ? offsets : position + block - strips * (big ? 8 : 4));
+		writeEntry(277, 3, 1, type == FileInfo.RGB ? 3 : 1); // SamplesPerPixel
+		writeEntry(278, 4, 1, rows); // RowsPerStrip
+		writeEntry(279, offsettype, strips, strips == 1 ? size : counts); // StripByteCounts
+		if (lutoffset != 0)
+			writeEntry(320, 3, 3 * 256, lutoffset); // ColorMap
+		if (type == FileInfo.GRAY32_FLOAT)
+			writeEntry(339, 3, 1, 3); // SampleFormat: floating point
+		long next = 0; // offset of the next IFD
+		if (plane + 1 < depth && single == false)
+			next = data + depth * size + plane * block;
+		writeOffset(next);
+	}
+
+	// Writes an entry whose value is in the entry (a single value) or at an offset
+	private void writeEntry(int tag, int type, long count, long value) throws IOException {
+		writeShort(tag);
+		writeShort(type);
+		if (big)
+			writeLong(count);
+		else
+			writeInt((int) count);
+		if (type == 3 && count == 1) {
+			writeShort((int) value);
+			writeShort(0);
+			if (big)
+				writeInt(0);
+		} else if (type == 4 && count == 1 && big) {
+			writeInt((int) value);
+			writeInt(0);
+		} else
+			writeOffset(value);
+	}
+
+	// Writes an offset: 32-bit, or 64-bit in a BigTIFF
+	private void writeOffset(long value) throws IOException {
+		if (big)
+			writeLong(value);
+		else
+			writeInt((int) value);
+	}
+
+	private void writeShort(int value) throws IOException {
+		out.write(value);
+		out.write(value >> 8);
+	}
+
+	private void writeInt(int value) throws IOException {
+		writeShort(value);
+		writeShort(value >>> 16);
+	}
+
+	private void writeLong(long value) throws IOException {
+		writeInt((int) value);
+		writeInt((int) (value >>> 32));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ij.ImagePlus;
+
+/**
+ * Whole colocalization of a pair of stacks by ColocalizationEngine, with the
+ * colormap kept in memory, for 8-bit and 16-bit stacks of several sizes, with
+ * manual or automatic thresholds and with or without nMDPs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColocalizeBenchmark {
+	@Param({ "8", "16" })
+	public int bitDepth; // bit depth of the stacks
+
+	@Param({ "256x256x16", "1024x1024x4", "4096x4096x1" })
+	public String size; // width x height x depth of the stacks
+
+	@Param({ "true", "false" })
+	public boolean autothreshold; // thresholds are calculated instead of given
+
+	@Param({ "true", "false" })
+	public boolean nMDPs; // nMDPs are kept in the result
+
+	@Param({ "1" })
+	public int threads; // the number of threads used by the engine
+
+	private ImagePlus image1;
+	private ImagePlus image2;
+
+	@Setup
+	public void setup() {
+		ImagePlus[] pair = Stacks.pair(bitDepth, size, 42);
+		image1 = pair[0];
+		image2 = pair[1];
+	}
+
+	@Benchmark
+	public ColocalizationResult colocalize() throws Exception {
+		ColocalizationEngine engine = new ColocalizationEngine();
+		engine.autothreshold = autothreshold;
+		engine.threshold1 = Stacks.thresholds(bitDepth)[0];
+		engine.threshold2 = Stacks.thresholds(bitDepth)[1];
+		engine.nMDPs = nMDPs;
+		engine.threads = threads;
+		return engine.colocalize(image1, image2);
+	}
+}
\ No newline at end of file
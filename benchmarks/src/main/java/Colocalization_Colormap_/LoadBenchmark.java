@@ -0,0 +1,102 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+/**
+ * Colocalization of a pair of uncompressed TIFF files as the batch processor
+ * reads them: decoded by ImageJ (new ImagePlus) or memory-mapped and read in
+ * strips by TiffStrips. The files stay in the page cache, so the benchmarks
+ * compare the loaders rather than the disk. Run with -prof gc to compare the
+ * heap allocated by each loader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+	@Param({ "8", "16" })
+	public int bitDepth; // bit depth of the stacks
+
+	@Param({ "1024x1024x16" })
+	public String size; // width x height x depth of the stacks
+
+	@Param({ "1" })
+	public int threads; // the number of threads used by the engine
+
+	private File directory; // folder of the TIFF files
+	private String path1;
+	private String path2;
+
+	@Setup
+	public void setup() throws IOException {
+		ImagePlus[] pair = Stacks.pair(bitDepth, size, 42);
+		directory = Files.createTempDirectory("colocalization").toFile();
+		path1 = new File(directory, "Image 1.tif").getPath();
+		path2 = new File(directory, "Image 2.tif").getPath();
+		new FileSaver(pair[0]).saveAsTiffStack(path1);
+		new FileSaver(pair[1]).saveAsTiffStack(path2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	private ColocalizationEngine engine() {
+		ColocalizationEngine engine = new ColocalizationEngine();
+		engine.autothreshold = false;
+		engine.threshold1 = Stacks.thresholds(bitDepth)[0];
+		engine.threshold2 = Stacks.thresholds(bitDepth)[1];
+		engine.colormap = false;
+		engine.threads = threads;
+		return engine;
+	}
+
+	@Benchmark
+	public ImagePlus[] loadImagePlus() {
+		return new ImagePlus[] { new ImagePlus(path1), new ImagePlus(path2) };
+	}
+
+	@Benchmark
+	public ColocalizationResult colocalizeImagePlus() throws Exception {
+		return engine().colocalize(new ImagePlus(path1), new ImagePlus(path2));
+	}
+
+	@Benchmark
+	public ColocalizationResult colocalizeStrips() throws Exception {
+		TiffStrips strips1 = TiffStrips.open(path1);
+		TiffStrips strips2 = TiffStrips.open(path2);
+		try {
+			return engine().colocalize(strips1, strips2);
+		} finally {
+			strips1.close();
+			strips2.close();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,56 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.util.Random;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Synthetic pairs of partially correlated 8-bit or 16-bit stacks used by the
+ * benchmarks. The same seed always gives the same stacks.
+ */
+final class Stacks {
+	static final double[] THRESHOLDS8 = { 40, 60 }; // manual thresholds of 8-bit stacks
+	static final double[] THRESHOLDS16 = { 900, 1200 }; // manual thresholds of 16-bit stacks
+
+	/**
+	 * Creates a pair of stacks of the given size, e.g. "1024x1024x4" (width x
+	 * height x depth)
+	 */
+	static ImagePlus[] pair(int bitDepth, String size, long seed) {
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+		int depth = Integer.parseInt(dimensions[2]);
+		Random random = new Random(seed);
+		int max = bitDepth == 8 ? 255 : 4095; // 12-bit camera range for 16-bit stacks
+		ImageStack stack1 = new ImageStack(width, height);
+		ImageStack stack2 = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			ImageProcessor processor1 = bitDepth == 8 ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+			ImageProcessor processor2 = bitDepth == 8 ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+			for (int i = 0; i < width * height; i++) {
+				int base = (int) (Math.abs(Math.sin(i * 0.01 + z)) * max * 0.7); // signal shared by both channels
+				processor1.set(i, Math.min(max, base + random.nextInt(max / 4)));
+				processor2.set(i, Math.min(max, (int) (base * 0.8) + random.nextInt(max / 3)));
+			}
+			stack1.addSlice("", processor1);
+			stack2.addSlice("", processor2);
+		}
+		return new ImagePlus[] { new ImagePlus("Image 1", stack1), new ImagePlus("Image 2", stack2) };
+	}
+
+	/**
+	 * Returns the manual thresholds of stacks of the given bit depth
+	 */
+	static double[] thresholds(int bitDepth) {
+		return bitDepth == 8 ? THRESHOLDS8 : THRESHOLDS16;
+	}
+}
\ No newline at end of file
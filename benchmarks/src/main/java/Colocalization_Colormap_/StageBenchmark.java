@@ -0,0 +1,159 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+/**
+ * Single stages of the colocalization of a pair of stacks: the statistics
+ * pass, the nMDP and colormap pass (scalar and vector kernels), serialization of nMDPs (text and binary)
+ * and saving of the colormap (ImageJ FileSaver and the streaming TiffWriter)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+	@Param({ "8", "16" })
+	public int bitDepth; // bit depth of the stacks
+
+	@Param({ "1024x1024x4" })
+	public String size; // width x height x depth of the stacks
+
+	@Param({ "1" })
+	public int threads; // the number of threads used by the kernel
+
+	private ColocalizationKernel.Source source; // the pair of stacks
+	private ColocalizationKernel kernel; // kernel with the statistics of the pair
+	private NMDPBuffer nMDPs; // nMDPs of the pair
+	private ImageStack colormap; // RGB colormap of the pair
+	private File directory; // folder of the files written by the benchmarks
+
+	@Setup
+	public void setup() throws IOException {
+		ImagePlus[] pair = Stacks.pair(bitDepth, size, 42);
+		source = ColocalizationKernel.source(pair[0].getStack(), pair[1].getStack());
+		double[] thresholds = Stacks.thresholds(bitDepth);
+		kernel = new ColocalizationKernel(thresholds[0], thresholds[1]);
+		kernel.threads = threads;
+		long[] stats = new long[ColocalizationKernel.STATISTICS];
+		kernel.statistics(source, stats);
+		long count = stats[ColocalizationKernel.COUNT];
+		kernel.setStatistics((double) stats[ColocalizationKernel.SUM1] / count,
+				(double) stats[ColocalizationKernel.SUM2] / count, stats[ColocalizationKernel.MAX1],
+				stats[ColocalizationKernel.MAX2], JetColormap.JET);
+		nMDPs = new NMDPBuffer();
+		kernel.colormap(source, nMDPs, null, new long[ColocalizationKernel.COUNTS], null);
+		colormap = kernel.colormap(pair[0].getStack(), pair[1].getStack(), null, null,
+				new long[ColocalizationKernel.COUNTS], true);
+		directory = Files.createTempDirectory("colocalization").toFile();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	public long[] statistics() {
+		long[] stats = new long[ColocalizationKernel.STATISTICS];
+		kernel.statistics(source, stats);
+		return stats;
+	}
+
+	@Benchmark
+	public long[] colormap(final Blackhole blackhole) {
+		long[] counts = new long[ColocalizationKernel.COUNTS];
+		kernel.colormap(source, null, null, counts, new Consumer<Object>() {
+			public void accept(Object pixels) {
+				blackhole.consume(pixels);
+			}
+		});
+		return counts;
+	}
+
+	@Benchmark
+	public NMDPBuffer nMDPs() {
+		NMDPBuffer buffer = new NMDPBuffer();
+		kernel.colormap(source, buffer, null, new long[ColocalizationKernel.COUNTS], null);
+		return buffer;
+	}
+
+	// The same passes on the vector kernel (the module has to be added to the forked JVM)
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+	public long[] colormapVector(Blackhole blackhole) {
+		return colormap(blackhole);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+	public NMDPBuffer nMDPsVector() {
+		return nMDPs();
+	}
+
+	@Benchmark
+	public void writeText() {
+		// Formats nMDPs as text without the cost of a disk
+		PrintWriter writer = new PrintWriter(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		nMDPs.write(NMDPBuffer.text(writer));
+		writer.close();
+	}
+
+	@Benchmark
+	public void writeBinary() throws IOException {
+		NMDPFile file = NMDPFile.create(new File(directory, "nMDPs" + NMDPFile.EXTENSION).getPath(),
+				colormap.getWidth(), colormap.getHeight(), colormap.getSize(), 0, 0, 0, 0, 0, 0);
+		nMDPs.write(file);
+		file.close();
+	}
+
+	@Benchmark
+	public void saveFileSaver() {
+		new FileSaver(new ImagePlus("Colormap", colormap)).saveAsTiffStack(new File(directory, "FileSaver.tif").getPath());
+	}
+
+	@Benchmark
+	public void saveTiffWriter() throws IOException {
+		TiffWriter writer = new TiffWriter(new File(directory, "TiffWriter.tif").getPath(), colormap.getWidth(),
+				colormap.getHeight(), colormap.getSize());
+		for (int i = 1; i <= colormap.getSize(); i++)
+			writer.write(colormap.getPixels(i));
+		writer.close();
+	}
+}
\ No newline at end of file
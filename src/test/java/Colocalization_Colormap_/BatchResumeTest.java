@@ -0,0 +1,140 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+/**
+ * Runs the batch processor again on the same folders: later runs skip the
+ * pairs recorded in the manifest, process only pairs that were added and
+ * pairs whose results are missing, and give the same Icorr lists
+ */
+public class BatchResumeTest {
+	private static final long OLD = 946684800000L; // modification time given to results of the first run
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String input1, input2, output; // input and output folders (ending with a separator)
+	private final Random random = new Random(17);
+
+	@Before
+	public void setUp() throws IOException {
+		input1 = folder.newFolder("Input 1").getPath() + File.separator;
+		input2 = folder.newFolder("Input 2").getPath() + File.separator;
+		output = folder.newFolder("Output").getPath() + File.separator;
+		for (int i = 0; i < 3; i++)
+			pair("img" + i);
+	}
+
+	@Test
+	public void skipsFinishedPairs() throws Exception {
+		process();
+		assertEquals(3, manifest().size());
+		List<String> icorr = lines(BatchResults.ICORR);
+		List<String> names = lines(BatchResults.NAMES);
+		File[] results = results();
+		assertEquals(6, results.length); // A colormap and nMDPs of each pair
+		for (File result : results)
+			assertTrue(result.setLastModified(OLD));
+
+		process(); // Nothing is processed again
+		assertEquals(3, manifest().size());
+		assertEquals(icorr, lines(BatchResults.ICORR));
+		assertEquals(names, lines(BatchResults.NAMES));
+		for (File result : results)
+			assertEquals(result.getName() + " was saved again", OLD, result.lastModified());
+
+		pair("img3"); // Only the new pair is processed
+		process();
+		assertEquals(4, manifest().size());
+		assertEquals(icorr, lines(BatchResults.ICORR).subList(0, 3));
+		assertEquals(8, results().length);
+		for (File result : results)
+			assertEquals(result.getName() + " was saved again", OLD, result.lastModified());
+	}
+
+	@Test
+	public void processesPairsWithMissingResults() throws Exception {
+		process();
+		File[] results = results();
+		for (File result : results)
+			assertTrue(result.setLastModified(OLD));
+		File missing = new File(output + "Colormap img1 and img1.tif");
+		assertTrue(missing.delete());
+
+		process(); // Only the pair whose colormap is missing is processed again
+		assertTrue(missing.isFile());
+		for (File result : results)
+			if (result.getName().contains("img1"))
+				assertNotEquals(OLD, result.lastModified());
+			else
+				assertEquals(result.getName() + " was saved again", OLD, result.lastModified());
+	}
+
+	// Saves a pair of random 8-bit stacks with the given name in the input folders
+	private void pair(String name) {
+		for (String input : new String[] { input1, input2 }) {
+			ImageStack stack = new ImageStack(64, 48);
+			for (int slice = 0; slice < 3; slice++) {
+				byte[] pixels = new byte[64 * 48];
+				random.nextBytes(pixels);
+				stack.addSlice("", pixels);
+			}
+			assertTrue(new FileSaver(new ImagePlus(name, stack)).saveAsTiffStack(input + name + ".tif"));
+		}
+	}
+
+	// Runs the batch processor with default settings and no progress output
+	private void process() throws ColocalizationException {
+		Colocalization_batch_processor_ batch = new Colocalization_batch_processor_();
+		batch.threads = 2;
+		batch.progress = new ColocalizationEngine.Progress() {
+			public void status(String message) {
+			}
+
+			public void log(String message) {
+			}
+
+			public void progress(long done, long total) {
+			}
+		};
+		batch.process(input1, input2, output);
+	}
+
+	// Returns the colormaps and nMDP files of the pairs
+	private File[] results() {
+		return new File(output).listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().startsWith("Colormap ") || file.getName().startsWith("nMDPs ");
+			}
+		});
+	}
+
+	private List<String> manifest() throws IOException {
+		return lines(BatchManifest.MANIFEST);
+	}
+
+	private List<String> lines(String name) throws IOException {
+		return Files.readAllLines(new File(output + name).toPath());
+	}
+}
\ No newline at end of file
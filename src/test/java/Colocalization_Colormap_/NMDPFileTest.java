@@ -0,0 +1,103 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes binary nMDP files and reads them back: the header, the float32 values
+ * (written in chunks larger and smaller than the write buffer) and their text
+ * form
+ */
+public class NMDPFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		String path = new File(folder.getRoot(), "nMDPs" + NMDPFile.EXTENSION).getPath();
+		Random random = new Random(6);
+		int n = 700000; // more values than the write buffer holds
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = random.nextDouble() * 2 - 1;
+		NMDPFile file = NMDPFile.create(path, 640, 480, 3, 12.5, 40, 100.25, 200.5, 255, 4095);
+		for (int from = 0; from < n;) {
+			int length = Math.min(n - from, 1 + random.nextInt(300000));
+			double[] chunk = new double[length];
+			System.arraycopy(values, from, chunk, 0, length);
+			file.write(chunk, length);
+			from += length;
+		}
+		file.close();
+		assertEquals(NMDPFile.HEADER + 4L * n, new File(path).length());
+
+		NMDPFile read = NMDPFile.open(path);
+		try {
+			assertEquals(640, read.width);
+			assertEquals(480, read.height);
+			assertEquals(3, read.depth);
+			assertEquals(n, read.count);
+			assertEquals(12.5, read.threshold1, 0.0);
+			assertEquals(40, read.threshold2, 0.0);
+			assertEquals(100.25, read.mean1, 0.0);
+			assertEquals(200.5, read.mean2, 0.0);
+			assertEquals(255, read.max1, 0.0);
+			assertEquals(4095, read.max2, 0.0);
+			float[] expected = new float[n];
+			for (int i = 0; i < n; i++)
+				expected[i] = (float) values[i];
+			assertArrayEquals(expected, read.values(), 0.0f);
+			StringWriter text = new StringWriter();
+			PrintWriter writer = new PrintWriter(text);
+			read.toText(writer);
+			writer.flush();
+			String[] lines = text.toString().split("\\R");
+			assertEquals(n, lines.length);
+			for (int i = 0; i < n; i += 9973)
+				assertEquals(expected[i], Float.parseFloat(lines[i]), 0.0f);
+		} finally {
+			read.close();
+		}
+	}
+
+	@Test
+	public void emptyFile() throws IOException {
+		String path = new File(folder.getRoot(), "empty" + NMDPFile.EXTENSION).getPath();
+		NMDPFile.create(path, 1, 1, 1, 0, 0, 0, 0, 0, 0).close();
+		NMDPFile read = NMDPFile.open(path);
+		try {
+			assertEquals(0, read.count);
+			assertEquals(0, read.values().length);
+		} finally {
+			read.close();
+		}
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		File other = folder.newFile("nMDPs.txt");
+		Files.write(other.toPath(), "0.5\n-0.25\n".getBytes("UTF-8"));
+		try {
+			NMDPFile.open(other.getPath()).close();
+			fail("A text file was opened as a binary nMDP file");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
\ No newline at end of file
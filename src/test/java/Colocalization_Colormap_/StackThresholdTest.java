@@ -0,0 +1,88 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Checks that StackThreshold gives the same thresholds as
+ * IJ.setAutoThreshold(image, "Default dark stack") on random 8-bit and 16-bit
+ * stacks of different intensity ranges and distributions
+ */
+public class StackThresholdTest {
+	private static final int STACKS = 60; // the number of random stacks of each bit depth
+
+	@Test
+	public void matchesImageJ8Bit() {
+		Random random = new Random(8);
+		for (int n = 0; n < STACKS; n++)
+			check(stack(random, 8), n);
+	}
+
+	@Test
+	public void matchesImageJ16Bit() {
+		Random random = new Random(16);
+		for (int n = 0; n < STACKS; n++)
+			check(stack(random, 16), n);
+	}
+
+	// Compares the threshold of the histogram of all pixels with that of ImageJ
+	private static void check(ImagePlus image, int n) {
+		long[] histogram = new long[image.getBitDepth() == 8 ? 256 : 65536];
+		ImageStack stack = image.getStack();
+		for (int slice = 1; slice <= stack.getSize(); slice++) {
+			Object pixels = stack.getPixels(slice);
+			if (pixels instanceof byte[])
+				for (byte value : (byte[]) pixels)
+					histogram[value & 0xff]++;
+			else
+				for (short value : (short[]) pixels)
+					histogram[value & 0xffff]++;
+		}
+		double expected = StackThreshold.threshold(image);
+		assertEquals("Stack " + n + " (" + image.getBitDepth() + "-bit)", expected,
+				StackThreshold.threshold(image, histogram), 0.0);
+	}
+
+	// Returns a random stack: background noise with brighter spots in a random
+	// intensity range
+	private static ImagePlus stack(Random random, int bitDepth) {
+		int width = 16 + random.nextInt(64);
+		int height = 16 + random.nextInt(64);
+		int depth = 1 + random.nextInt(6);
+		int limit = bitDepth == 8 ? 256 : 65536;
+		int low = random.nextInt(limit / 2); // the lowest intensity
+		int range = 1 + random.nextInt(limit - low); // the range of intensities
+		double background = random.nextDouble(); // the fraction of the range taken by background
+		double spots = random.nextDouble() * 0.5; // the fraction of pixels in spots
+		ImageStack stack = new ImageStack(width, height);
+		for (int slice = 0; slice < depth; slice++) {
+			int[] values = new int[width * height];
+			for (int i = 0; i < values.length; i++) {
+				double value = random.nextDouble() < spots ? background + random.nextDouble() * (1 - background)
+						: Math.abs(random.nextGaussian()) * background / 3;
+				values[i] = Math.min(limit - 1, low + (int) (Math.min(1.0, value) * (range - 1)));
+			}
+			if (bitDepth == 8) {
+				byte[] pixels = new byte[values.length];
+				for (int i = 0; i < values.length; i++)
+					pixels[i] = (byte) values[i];
+				stack.addSlice("", pixels);
+			} else {
+				short[] pixels = new short[values.length];
+				for (int i = 0; i < values.length; i++)
+					pixels[i] = (short) values[i];
+				stack.addSlice("", pixels);
+			}
+		}
+		return new ImagePlus("Stack", stack);
+	}
+}
\ No newline at end of file
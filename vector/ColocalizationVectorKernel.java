@@ -0,0 +1,129 @@
+/**
+ * Colocalization Colormap
+ * ImageJ plugin for quantifying spatial distribution of colocalization
+ */
+
+package Colocalization_Colormap_;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * nMDP loop of ColocalizationKernel written with the incubating Vector API
+ * (jdk.incubator.vector). Pixels are widened to int lanes, the ROI is a lane
+ * mask of the two thresholds and the nMDPs of a whole vector are calculated,
+ * limited, counted and turned into colormap indices at once. The operations
+ * are those of the scalar loop in the same order (value - mean is what the
+ * deviation tables hold), so nMDPs and colormaps are identical. Indices are
+ * kept as doubles and looked up in a table one at a time: conversions between
+ * vector shapes are slower than the scalar loop on common hardware.
+ * <p>
+ * Compiled by the 'vector' build profile (JDK 17 or later) and loaded by
+ * ColocalizationKernel only when the JVM runs with --add-modules
+ * jdk.incubator.vector; the scalar loops are used otherwise.
+ */
+final class ColocalizationVectorKernel implements ColocalizationKernel.Lanes {
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	// int lanes of the same number as double lanes (half the bit size)
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class,
+			VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+	private static final int OUTSIDE = 256; // colormap index of pixels outside the ROI
+
+	public void colormap(Object pixels1, Object pixels2, int from, int to, ColocalizationKernel kernel,
+			Object pixels, double[] nMDPs, long[] counts) {
+		int[] rgb = pixels instanceof int[] ? (int[]) pixels : null; // RGB colormap
+		byte[] indices = pixels instanceof byte[] ? (byte[]) pixels : null; // indexed colormap
+		int length = to - from;
+		int[] values1 = new int[length];
+		int[] values2 = new int[length];
+		double[] colors = pixels != null ? new double[length] : null; // colormap indices
+		widen(pixels1, from, values1);
+		widen(pixels2, from, values2);
+		int limit1 = limit(kernel.threshold1);
+		int limit2 = limit(kernel.threshold2);
+		double mean1 = kernel.mean1, mean2 = kernel.mean2, denominator = kernel.denominator;
+		long positive = 0, all = 0;
+		int i = 0;
+		for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+			IntVector value1 = IntVector.fromArray(INTS, values1, i);
+			IntVector value2 = IntVector.fromArray(INTS, values2, i);
+			// Only pixels in the ROI are taken into account
+			VectorMask<Double> roi = value1.compare(VectorOperators.GE, limit1)
+					.or(value2.compare(VectorOperators.GE, limit2)).cast(DOUBLES);
+			DoubleVector deviation1 = ((DoubleVector) value1.convertShape(VectorOperators.I2D, DOUBLES, 0)).sub(mean1);
+			DoubleVector deviation2 = ((DoubleVector) value2.convertShape(VectorOperators.I2D, DOUBLES, 0)).sub(mean2);
+			DoubleVector nMDP = deviation1.mul(deviation2).div(denominator).min(1).max(-1);
+			positive += nMDP.compare(VectorOperators.GT, 0).and(roi).trueCount();
+			all += roi.trueCount();
+			if (nMDPs != null)
+				nMDP.blend(ColocalizationKernel.BACKGROUND, roi.not()).intoArray(nMDPs, i);
+			if (colors != null) {
+				// nMDP8bit: Math.round(x) is (int) (x + 0.5) for 0.5 <= x <= 255 and 0 below (or NaN)
+				DoubleVector x = nMDP.add(1).div(2).mul(255);
+				x.add(0.5).blend(0, x.compare(VectorOperators.LT, 0.5)).blend(OUTSIDE, roi.not()).intoArray(colors, i);
+			}
+		}
+		for (int j = i; j < length; j++) { // The rest of the pixels, one at a time
+			int value1 = values1[j];
+			int value2 = values2[j];
+			if (value1 >= limit1 || value2 >= limit2) {
+				double nMDP = ((value1 - mean1) * (value2 - mean2)) / denominator;
+				if (nMDP > 1)
+					nMDP = 1;
+				if (nMDP < -1)
+					nMDP = -1;
+				if (nMDP > 0)
+					positive++;
+				all++;
+				if (nMDPs != null)
+					nMDPs[j] = nMDP;
+				if (colors != null)
+					colors[j] = ColocalizationKernel.nMDP8bit(nMDP);
+			} else {
+				if (nMDPs != null)
+					nMDPs[j] = ColocalizationKernel.BACKGROUND;
+				if (colors != null)
+					colors[j] = OUTSIDE;
+			}
+		}
+		if (rgb != null) {
+			int[] table = new int[OUTSIDE + 1]; // 'jet' colors and black outside the ROI
+			System.arraycopy(kernel.colormap, 0, table, 0, OUTSIDE);
+			for (int j = 0; j < length; j++)
+				rgb[from + j] = table[(int) colors[j]];
+		} else if (indices != null) {
+			byte[] table = new byte[OUTSIDE + 1]; // Index 0 is kept for the background
+			for (int index = 0; index < OUTSIDE; index++)
+				table[index] = (byte) Math.max(1, index);
+			for (int j = 0; j < length; j++)
+				indices[from + j] = table[(int) colors[j]];
+		}
+		counts[ColocalizationKernel.POSITIVE] += positive;
+		counts[ColocalizationKernel.ALL] += all;
+	}
+
+	// Copies unsigned 8-bit or 16-bit pixels from index from on into values
+	private static void widen(Object pixels, int from, int[] values) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < values.length; i++)
+				values[i] = bytes[from + i] & 0xff;
+		} else {
+			short[] shorts = (short[]) pixels;
+			for (int i = 0; i < values.length; i++)
+				values[i] = shorts[from + i] & 0xffff;
+		}
+	}
+
+	// Returns the lowest integer intensity that is not below threshold (value >=
+	// threshold is value >= limit for all intensities 0 to 65535)
+	private static int limit(double threshold) {
+		if (Double.isNaN(threshold))
+			return Integer.MAX_VALUE; // No intensity is above NaN
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.ceil(threshold)));
+	}
+}
\ No newline at end of file